@@ -0,0 +1,95 @@
+package benchmarks;
+
+import api.JsonReader;
+import api.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Compares the streaming codec with the split/regex parsing and String.format responses it replaced.
+// Run with -prof gc to see allocation per operation.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonCodecBenchmark {
+
+    private final byte[] depositRequest = ("{\"userId\":\"6f1c2a4e-2b7d-4c55-9a1e-1f0c8e3b9d21\","
+            + "\"amount\":\"125.50\",\"idempotencyKey\":\"b7e4a0c2-93f1-4d8e-8c2a-5e6f7a8b9c0d\"}")
+            .getBytes(StandardCharsets.UTF_8);
+    private final String transactionId = "0a4b1c9e-7d3f-4e21-b8a5-6c2d1e0f9a87";
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream(256);
+
+    @Benchmark
+    public Map<String, String> parseStreaming() throws IOException {
+        return JsonReader.readObject(new ByteArrayInputStream(depositRequest));
+    }
+
+    @Benchmark
+    public Map<String, String> parseLegacy() throws IOException {
+        String body = new String(new ByteArrayInputStream(depositRequest).readAllBytes(), StandardCharsets.UTF_8);
+        return legacyParseJsonToMap(body);
+    }
+
+    @Benchmark
+    public void serializePooled(Blackhole bh) throws IOException {
+        JsonWriter json = JsonWriter.acquire().beginObject()
+                .field("transactionId", transactionId)
+                .field("message", "Deposit request processed")
+                .endObject();
+        try {
+            sink.reset();
+            bh.consume(json.size());
+            json.writeTo(sink);
+        } finally {
+            JsonWriter.release(json);
+        }
+        bh.consume(sink);
+    }
+
+    @Benchmark
+    public void serializeLegacy(Blackhole bh) throws IOException {
+        String response = String.format(
+                "{\"transactionId\":\"%s\",\"message\":\"Deposit request processed\"}",
+                transactionId
+        );
+        sink.reset();
+        bh.consume(response.getBytes().length);
+        sink.write(response.getBytes());
+        bh.consume(sink);
+    }
+
+    // The parser HttpServer used before the streaming codec
+    private static Map<String, String> legacyParseJsonToMap(String json) {
+        Map<String, String> map = new HashMap<>();
+        json = json.trim().substring(1, json.length() - 1);
+
+        String[] pairs = json.split(",");
+        for (String pair : pairs) {
+            String[] keyValue = pair.split(":");
+            if (keyValue.length == 2) {
+                String key = keyValue[0].trim().replaceAll("\"", "");
+                String value = keyValue[1].trim().replaceAll("\"", "");
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+}
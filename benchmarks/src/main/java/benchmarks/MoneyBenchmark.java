@@ -0,0 +1,58 @@
+package benchmarks;
+
+import models.Money;
+import models.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+// The per-transaction amount handling (parse the request amount, validate it, check and apply it
+// to a balance) with Money against the BigDecimal code it replaced. Run with -prof gc to compare
+// allocation per operation.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MoneyBenchmark {
+
+    private final String requestAmount = "125.50";
+    private Money moneyBalance = Money.ofMinor(100_000_000, User.Currency.USD);
+    private BigDecimal decimalBalance = new BigDecimal("1000000.00");
+
+    @Benchmark
+    public Money checkAndApplyMoney() {
+        Money amount = Money.ofMinor(Money.parseMinorUnits(requestAmount), User.Currency.USD);
+        if (!amount.isPositive()) {
+            throw new IllegalStateException("Amount must be positive");
+        }
+        if (moneyBalance.compareTo(amount) < 0) {
+            moneyBalance = moneyBalance.add(Money.ofMinor(100_000_000, User.Currency.USD));
+        }
+        moneyBalance = moneyBalance.subtract(amount);
+        return moneyBalance;
+    }
+
+    @Benchmark
+    public BigDecimal checkAndApplyBigDecimal() {
+        BigDecimal amount = new BigDecimal(requestAmount);
+        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
+            throw new IllegalStateException("Amount must be positive");
+        }
+        if (decimalBalance.compareTo(amount) < 0) {
+            decimalBalance = decimalBalance.add(new BigDecimal("1000000.00"));
+        }
+        decimalBalance = decimalBalance.subtract(amount);
+        return decimalBalance;
+    }
+}
@@ -0,0 +1,130 @@
+package benchmarks;
+
+import config.StorageBackend;
+import database.DBManager;
+import database.InMemoryAccountRepository;
+import database.InMemoryTransactionRepository;
+import models.Money;
+import models.Transaction;
+import models.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import services.PaymentService;
+import transaction.TransactionQueue;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end service benchmarks, on in-memory storage by default. With -p storage=MYSQL they run
+// against the database configured by DB_URL, DB_USER and DB_PASSWORD instead; point that at a
+// disposable local MySQL schema, since every run creates accounts and transactions.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class PaymentServiceBenchmark {
+
+    public enum Scenario {
+        // Load spread over many accounts: measures raw throughput
+        MANY_ACCOUNTS,
+        // Every request hits one account: measures contention on a single row
+        HOT_ACCOUNT
+    }
+
+    @Param({"MANY_ACCOUNTS", "HOT_ACCOUNT"})
+    public Scenario scenario;
+
+    @Param({"1000"})
+    public int accountCount;
+
+    @Param({"DATABASE", "MEMORY"})
+    public PaymentService.LedgerMode ledgerMode;
+
+    @Param({"MEMORY"})
+    public StorageBackend storage;
+
+    private static final long AMOUNT_MINOR = 100;
+
+    private PaymentService paymentService;
+    private TransactionQueue queue;
+    private String[] accountIds;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Read by the queue as well, which keeps no journal for the MEMORY backend
+        System.setProperty("STORAGE_BACKEND", storage.name());
+        if (storage == StorageBackend.MEMORY) {
+            InMemoryAccountRepository accounts = new InMemoryAccountRepository();
+            paymentService = new PaymentService(accounts, new InMemoryTransactionRepository(accounts), null, ledgerMode);
+        } else {
+            DBManager.initializeConnection();
+            if (DBManager.getDataSource() == null) {
+                throw new IllegalStateException("Database is not reachable; set DB_URL, DB_USER and DB_PASSWORD");
+            }
+            paymentService = new PaymentService(ledgerMode);
+        }
+        queue = paymentService.getQueue();
+
+        int accounts = scenario == Scenario.HOT_ACCOUNT ? 1 : accountCount;
+        String runId = UUID.randomUUID().toString().substring(0, 8);
+        accountIds = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            accountIds[i] = UUID.randomUUID().toString();
+            paymentService.createUser(accountIds[i], "bench-" + runId + "-" + i,
+                    Money.ofMinor(100_000_000, User.Currency.USD));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        paymentService.shutdown();
+        if (storage == StorageBackend.MYSQL) {
+            DBManager.closeConnection();
+        }
+    }
+
+    // Request path: account lookup, validation, idempotency reservation and enqueue.
+    // The queued transaction is taken straight back off so the queue never fills up.
+    @Benchmark
+    public Transaction processDeposit() throws Exception {
+        paymentService.processDeposit(nextAccount(), AMOUNT_MINOR, UUID.randomUUID().toString());
+        Transaction transaction = queue.dequeue();
+        queue.complete(transaction);
+        return transaction;
+    }
+
+    // Worker path: the atomic ledger posting through the batch writer
+    @Benchmark
+    public Transaction executeTransaction() throws Exception {
+        Transaction transaction = new Transaction();
+        transaction.setTransactionId(UUID.randomUUID().toString());
+        transaction.setAccountId(nextAccount());
+        transaction.setAmount(Money.ofMinor(AMOUNT_MINOR, User.Currency.USD));
+        transaction.setType(Transaction.TransactionType.DEPOSIT);
+        transaction.setStatus(Transaction.TransactionStatus.PENDING);
+        transaction.setCreationTime(Instant.now());
+        paymentService.executeTransaction(transaction);
+        return transaction;
+    }
+
+    private String nextAccount() {
+        return accountIds[ThreadLocalRandom.current().nextInt(accountIds.length)];
+    }
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import models.Money;
+import models.Transaction;
+import models.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import transaction.TransactionQueue;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionQueueBenchmark {
+
+    private TransactionQueue queue;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        Transaction transaction;
+        String idPrefix = UUID.randomUUID() + "-";
+        long sequence = 0;
+
+        @Setup
+        public void setup() {
+            transaction = new Transaction();
+            transaction.setTransactionId(UUID.randomUUID().toString());
+            transaction.setAccountId(UUID.randomUUID().toString());
+            transaction.setAmount(Money.ofMinor(1000, User.Currency.USD));
+            transaction.setType(Transaction.TransactionType.DEPOSIT);
+            transaction.setCreationTime(Instant.now());
+        }
+    }
+
+    @Setup
+    public void setup() {
+        queue = TransactionQueue.getInstance();
+    }
+
+    // Each thread dequeues only after its own enqueue, so take() never waits for long.
+    // Includes the journal append and checkpoint unless run with -jvmArgsAppend -DJOURNAL_ENABLED=false.
+    @Benchmark
+    @Threads(1)
+    public Transaction enqueueDequeue(ThreadState state) throws Exception {
+        return roundTrip(state);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Transaction enqueueDequeueContended(ThreadState state) throws Exception {
+        return roundTrip(state);
+    }
+
+    private Transaction roundTrip(ThreadState state) throws Exception {
+        // The journal tracks transactions by id, so every round trip needs a fresh one
+        state.transaction.setTransactionId(state.idPrefix + state.sequence++);
+        queue.enqueue(state.transaction);
+        Transaction transaction = queue.dequeue();
+        queue.complete(transaction);
+        return transaction;
+    }
+
+    @TearDown
+    public void tearDown() {
+        queue.shutdown();
+    }
+}
@@ -1,5 +1,8 @@
 import api.HttpServer;
+import config.StorageBackend;
 import database.DBManager;
+import database.InMemoryAccountRepository;
+import database.InMemoryTransactionRepository;
 import services.PaymentService;
 import transaction.TransactionProcessor;
 
@@ -7,19 +10,32 @@ public class Main {
 
     private static HttpServer httpServer;
     private static TransactionProcessor processor;
+    private static PaymentService paymentService;
 
     public static void main(String[] args) {
         System.out.println("Payment Gateway Server starting...");
         try {
-            // Initialize connection with SQL Database
-            DBManager.initializeConnection();
+            // Initialize the Services on the configured storage
+            StorageBackend storage = StorageBackend.fromConfig();
+            if (storage == StorageBackend.MEMORY) {
+                System.out.println("Using in-memory storage; nothing is kept after shutdown");
+                InMemoryAccountRepository accounts = new InMemoryAccountRepository();
+                paymentService = new PaymentService(accounts, new InMemoryTransactionRepository(accounts), null,
+                        PaymentService.LedgerMode.fromConfig());
+            } else {
+                // Initialize connection with SQL Database
+                DBManager.initializeConnection();
+                paymentService = new PaymentService();
+            }
+            processor = new TransactionProcessor(paymentService);
 
-            // Initialize the Services
-            PaymentService ps = new PaymentService();
-            processor = new TransactionProcessor(ps);
+            // Finish transactions accepted before the last shutdown before taking new traffic
+            int replayed = paymentService.getQueue().replayJournal(paymentService::isRecorded);
+            if (replayed > 0)
+                System.out.println("Replayed " + replayed + " transactions from the journal");
 
             // Start HTTP server
-            httpServer = new HttpServer(ps, 8080);
+            httpServer = new HttpServer(paymentService, 8080);
             httpServer.start();
 
             System.out.println("Payment Gateway Server running on Port 8000");
@@ -44,6 +60,9 @@ public class Main {
             if (processor != null)
                 processor.shutdown();
 
+            if (paymentService != null)
+                paymentService.shutdown();
+
             DBManager.closeConnection();
             System.out.println("Server shutdown complete");
         }
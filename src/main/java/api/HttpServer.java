@@ -2,53 +2,185 @@ package api;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import config.AppConfig;
+import config.ThreadMode;
+import database.ConnectionPool;
+import database.DBManager;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import metrics.PrometheusWriter;
+import models.Money;
+import models.PaymentRequest;
+import models.Transaction;
 import models.User;
+import services.AccountCache;
+import services.AccountDirectory;
+import services.BatchRejectedException;
+import services.DuplicateInProgressException;
+import services.LedgerEngine;
 import services.PaymentService;
+import transaction.CompletionRegistry;
+import transaction.QueueRejectedException;
+import transaction.TransactionQueue;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigDecimal;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
 
 public class HttpServer {
+    public enum Transport {
+        // com.sun.net.httpserver: each connection's reads and writes happen on the handler threads
+        JDK,
+        // NioHttpServer: event-loop threads own the sockets and only handler work uses the handler threads
+        NIO;
+
+        public static Transport fromConfig() {
+            return valueOf(AppConfig.getString("HTTP_TRANSPORT", "JDK").toUpperCase());
+        }
+    }
+
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 500;
+    // Streamed responses are sent in chunks of roughly this size
+    private static final int STREAM_CHUNK_BYTES = 8192;
+    // History rows read per query while streaming a page
+    private static final int HISTORY_WINDOW_ROWS = 100;
+    private static final long DEFAULT_AWAIT_TIMEOUT_SECONDS = 30;
+    private static final long EVENT_HEARTBEAT_SECONDS = 15;
+    // Heartbeat frames go through a stream's buffer like events; this one stands for them
+    private static final Transaction HEARTBEAT = new Transaction();
+    private static final String START_NANOS = "startNanos";
+    // Set on exchanges answered from another thread, which record their own metrics
+    private static final String ANSWERED_LATER = "answeredLater";
+
     private final PaymentService paymentService;
     private final int port;
+    private final ThreadMode threadMode;
+    private final Transport transport;
+    private final Map<String, HttpHandler> contexts = new LinkedHashMap<>();
+    private final int batchMaxItems = AppConfig.getInt("BATCH_MAX_ITEMS", 10_000);
+    private final long awaitMaxTimeoutSeconds = AppConfig.getLong("AWAIT_MAX_TIMEOUT_SECONDS", 60);
+    private final int eventStreamsMax = AppConfig.getInt("EVENT_STREAMS_MAX", 1000);
+    private final int eventStreamBuffer = Math.max(1, AppConfig.getInt("EVENT_STREAM_BUFFER", 256));
     private com.sun.net.httpserver.HttpServer server;
+    private NioHttpServer nioServer;
+    private ExecutorService executor;
+    // Only fires timers (event stream heartbeats); it never writes to a client
+    private ScheduledExecutorService notifier;
+    // Writes long-poll answers and event stream frames, so waiting clients hold no handler thread.
+    // Threads are added as needed, so a client that stops reading only stalls its own write. They
+    // are platform threads because the JDK transport writes inside synchronized blocks, which would
+    // pin virtual threads to their carriers.
+    private ExecutorService writers;
 
     public HttpServer(PaymentService paymentService, int port) {
+        this(paymentService, port, ThreadMode.fromConfig(), Transport.fromConfig());
+    }
+
+    public HttpServer(PaymentService paymentService, int port, ThreadMode threadMode) {
+        this(paymentService, port, threadMode, Transport.fromConfig());
+    }
+
+    public HttpServer(PaymentService paymentService, int port, ThreadMode threadMode, Transport transport) {
         this.paymentService = paymentService;
         this.port = port;
+        this.threadMode = threadMode;
+        this.transport = transport;
     }
 
     public void start() throws Exception {
-        server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(port), 0);
-
         // Set up endpoints
-        server.createContext("/users", new UserHandler());
-        server.createContext("/deposit", new DepositHandler());
-        server.createContext("/withdraw", new WithdrawHandler());
-        server.createContext("/balance", new BalanceHandler());
-        server.createContext("/health", new HealthHandler());
+        createContext("/users", new UserHandler());
+        createContext("/deposit", new DepositHandler());
+        createContext("/withdraw", new WithdrawHandler());
+        createContext("/batch", new BatchHandler());
+        createContext("/balance", new BalanceHandler());
+        createContext("/transactions", new TransactionHandler());
+        createContext("/health", new HealthHandler());
+        createContext("/metrics", new MetricsHandler());
 
-        server.setExecutor(Executors.newFixedThreadPool(10));
-        server.start();
+        // Virtual threads lift the cap on in-flight requests; DB access stays bounded by the pool
+        executor = threadMode.newExecutor("http-handler-", AppConfig.getInt("HTTP_THREADS", 10));
+        notifier = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "http-notifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writers = Executors.newCachedThreadPool(Thread.ofPlatform().name("http-writer-", 0).daemon(true).factory());
+        if (transport == Transport.NIO) {
+            nioServer = new NioHttpServer(new InetSocketAddress(port), contexts, executor);
+            nioServer.start();
+        } else {
+            server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(port), 0);
+            contexts.forEach(server::createContext);
+            server.setExecutor(executor);
+            server.start();
+        }
 
-        System.out.println("HTTP Server started on port " + port);
+        System.out.println("HTTP Server started on port " + port + " (" + transport + " transport, "
+                + threadMode + " threads)");
         System.out.println("Available endpoints:");
         System.out.println("  POST /users - Create user");
         System.out.println("  GET /users/{userId} - Get user by ID");
+        System.out.println("  GET /users/{userId}/transactions?after=&limit= - Transaction history");
+        System.out.println("  GET /users/{userId}/events - Transaction outcomes for the account (server-sent events)");
         System.out.println("  POST /deposit - Process deposit");
         System.out.println("  POST /withdraw - Process withdrawal");
+        System.out.println("  POST /batch - Process a batch of deposits and withdrawals");
         System.out.println("  GET /balance/{userId} - Get user balance");
+        System.out.println("  GET /transactions/{transactionId} - Transaction status");
+        System.out.println("  GET /transactions/{transactionId}/await?timeout= - Wait for the transaction outcome");
         System.out.println("  GET /health - Health check");
+        System.out.println("  GET /metrics - Prometheus metrics");
+    }
+
+    // Every handler is timed and its responses counted per endpoint. Handlers that answer later
+    // mark the exchange and record themselves once they respond, which may be before this returns.
+    private void createContext(String path, HttpHandler handler) {
+        contexts.put(path, exchange -> {
+            long start = System.nanoTime();
+            exchange.setAttribute(START_NANOS, start);
+            try {
+                handler.handle(exchange);
+            } finally {
+                if (exchange.getResponseCode() != -1 && exchange.getAttribute(ANSWERED_LATER) == null) {
+                    Metrics.recordHttp(path, exchange.getResponseCode(), start);
+                }
+            }
+        });
     }
 
     public void stop() {
-        if (server != null) {
-            server.stop(5);
+        if (server != null || nioServer != null) {
+            if (server != null) {
+                server.stop(5);
+            } else {
+                nioServer.stop(5);
+            }
+            notifier.shutdownNow();
+            writers.shutdownNow();
+            executor.shutdown();
             System.out.println("HTTP Server stopped");
         }
     }
@@ -64,70 +196,361 @@ public class HttpServer {
                 if ("POST".equals(method)) {
                     handleCreateUser(exchange);
                 } else if ("GET".equals(method)) {
+                    String[] parts = path.split("/");
                     String userId = extractUserIdFromPath(path);
-                    handleGetUser(exchange, userId);
+                    if (parts.length == 4 && "transactions".equals(parts[3])) {
+                        handleGetHistory(exchange, userId);
+                    } else if (parts.length == 4 && "events".equals(parts[3])) {
+                        handleEvents(exchange, userId);
+                    } else {
+                        handleGetUser(exchange, userId);
+                    }
                 } else {
-                    sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                    sendError(exchange, 405, "Method not allowed");
                 }
             } catch (Exception e) {
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+                sendError(exchange, 500, e.getMessage());
             }
         }
 
         private void handleCreateUser(HttpExchange exchange) throws Exception {
-            String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-            Map<String, String> params = parseJsonToMap(requestBody);
+            Map<String, String> params = JsonReader.readObject(exchange.getRequestBody());
 
             String userId = params.get("userId");
             String username = params.get("username");
-            BigDecimal balance = new BigDecimal(params.getOrDefault("balance", "0.00"));
             User.Currency currency = User.Currency.valueOf(params.getOrDefault("currency", "USD"));
+            Money balance = Money.ofMinor(Money.parseMinorUnits(params.getOrDefault("balance", "0.00")), currency);
 
-            paymentService.createUser(userId, username, balance, currency);
-            sendResponse(exchange, 201, "{\"message\":\"User created successfully\",\"userId\":\"" + userId + "\"}");
+            paymentService.createUser(userId, username, balance);
+            sendResponse(exchange, 201, JsonWriter.acquire().beginObject()
+                    .field("message", "User created successfully")
+                    .field("userId", userId)
+                    .endObject());
         }
 
         private void handleGetUser(HttpExchange exchange, String userId) throws Exception {
             User user = paymentService.getUserById(userId);
             if (user != null) {
-                String response = String.format(
-                        "{\"userId\":\"%s\",\"username\":\"%s\",\"balance\":%s,\"currency\":\"%s\"}",
-                        user.getUserId(), user.getUsername(), user.getBalance().toString(), user.getCurrency()
-                );
-                sendResponse(exchange, 200, response);
+                sendResponse(exchange, 200, JsonWriter.acquire().beginObject()
+                        .field("userId", user.getUserId())
+                        .field("username", user.getUsername())
+                        .field("balance", user.getBalance())
+                        .field("currency", user.getCurrency().name())
+                        .endObject());
             } else {
-                sendResponse(exchange, 404, "{\"error\":\"User not found\"}");
+                sendError(exchange, 404, "User not found");
+            }
+        }
+
+        // One page of history, newest first; pass nextCursor back as after= for the next page
+        private void handleGetHistory(HttpExchange exchange, String userId) throws Exception {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            int limit;
+            Instant afterTime = null;
+            String afterId = null;
+            try {
+                limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_PAGE_SIZE;
+                String after = query.get("after");
+                if (after != null) {
+                    String cursor = new String(Base64.getUrlDecoder().decode(after), StandardCharsets.UTF_8);
+                    int separator = cursor.indexOf(':');
+                    afterTime = decodeCursorTime(cursor.substring(0, separator));
+                    afterId = cursor.substring(separator + 1);
+                }
+            } catch (Exception e) {
+                sendError(exchange, 400, "Invalid limit or after parameter");
+                return;
+            }
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                sendError(exchange, 400, "limit must be between 1 and " + MAX_PAGE_SIZE);
+                return;
+            }
+            if (!paymentService.accountExists(userId)) {
+                sendError(exchange, 404, "User not found");
+                return;
+            }
+
+            StreamedResponse response = new StreamedResponse(exchange);
+            try {
+                JsonWriter json = response.json;
+                json.beginObject().field("userId", userId).name("transactions").beginArray();
+
+                // Rows are read in windows and written between queries, so a slow client never
+                // holds a pooled connection while it reads
+                List<Transaction> window = new ArrayList<>(Math.min(limit, HISTORY_WINDOW_ROWS));
+                Transaction last = null;
+                int count = 0;
+                while (count < limit) {
+                    int wanted = Math.min(limit - count, HISTORY_WINDOW_ROWS);
+                    window.clear();
+                    paymentService.getTransactionHistory(userId,
+                            last != null ? last.getCreationTime() : afterTime,
+                            last != null ? last.getTransactionId() : afterId,
+                            wanted, window::add);
+                    for (Transaction transaction : window) {
+                        writeTransaction(json, transaction);
+                        response.flushIfFull();
+                    }
+                    count += window.size();
+                    if (!window.isEmpty()) {
+                        last = window.get(window.size() - 1);
+                    }
+                    if (window.size() < wanted) {
+                        break;
+                    }
+                }
+
+                json.endArray();
+                json.field("nextCursor", count == limit ? encodeCursor(last) : null);
+                response.finish(json.endObject());
+            } finally {
+                response.close();
+            }
+        }
+
+        // Server-sent events: one frame per finished transaction of the account, named after its status
+        private void handleEvents(HttpExchange exchange, String userId) throws Exception {
+            if (!paymentService.accountExists(userId)) {
+                sendError(exchange, 404, "User not found");
+                return;
+            }
+            if (paymentService.getCompletions().getSubscriberCount() >= eventStreamsMax) {
+                sendError(exchange, 503, "Too many event streams");
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            new EventStream(exchange, userId).open();
+        }
+    }
+
+    // Transaction status handler
+    class TransactionHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+
+            try {
+                String path = exchange.getRequestURI().getPath();
+                String transactionId = extractUserIdFromPath(path);
+                String[] parts = path.split("/");
+                if (parts.length == 4 && "await".equals(parts[3])) {
+                    handleAwait(exchange, transactionId);
+                    return;
+                }
+                Transaction transaction = paymentService.getTransaction(transactionId);
+                if (transaction != null) {
+                    JsonWriter json = JsonWriter.acquire();
+                    writeTransaction(json, transaction);
+                    sendResponse(exchange, 200, json);
+                } else {
+                    sendError(exchange, 404, "Transaction not found");
+                }
+            } catch (Exception e) {
+                sendError(exchange, 500, e.getMessage());
             }
         }
     }
 
+    // Long-poll: answers as soon as the transaction finishes, or with its PENDING status after the
+    // timeout. The handler thread is released while waiting.
+    private void handleAwait(HttpExchange exchange, String transactionId) throws Exception {
+        long timeoutSeconds;
+        try {
+            String timeout = parseQuery(exchange.getRequestURI().getRawQuery()).get("timeout");
+            timeoutSeconds = timeout != null ? Long.parseLong(timeout) : DEFAULT_AWAIT_TIMEOUT_SECONDS;
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "Invalid timeout parameter");
+            return;
+        }
+        if (timeoutSeconds < 0 || timeoutSeconds > awaitMaxTimeoutSeconds) {
+            sendError(exchange, 400, "timeout must be between 0 and " + awaitMaxTimeoutSeconds + " seconds");
+            return;
+        }
+
+        CompletionRegistry completions = paymentService.getCompletions();
+        CompletableFuture<Transaction> waiter = completions.await(transactionId);
+        if (!waiter.isDone()) {
+            // Waiting is registered first, so an outcome published during this lookup is not missed
+            Transaction current = paymentService.getTransaction(transactionId);
+            if (current == null) {
+                completions.cancel(transactionId, waiter);
+                sendError(exchange, 404, "Transaction not found");
+                return;
+            }
+            if (current.isFinished()) {
+                completions.cancel(transactionId, waiter);
+                waiter.complete(current);
+            }
+        }
+
+        exchange.setAttribute(ANSWERED_LATER, Boolean.TRUE);
+        waiter.completeOnTimeout(null, timeoutSeconds, TimeUnit.SECONDS)
+                .whenCompleteAsync((transaction, e) -> {
+                    if (transaction == null) {
+                        completions.cancel(transactionId, waiter);
+                        transaction = new Transaction();
+                        transaction.setTransactionId(transactionId);
+                        transaction.setStatus(Transaction.TransactionStatus.PENDING);
+                    }
+                    try {
+                        JsonWriter json = JsonWriter.acquire();
+                        writeTransaction(json, transaction);
+                        sendResponse(exchange, 200, json);
+                    } catch (IOException ioe) {
+                        System.err.println("Error answering await for " + transactionId + ": " + ioe.getMessage());
+                    } finally {
+                        Metrics.recordHttp("/transactions", exchange.getResponseCode(), (Long) exchange.getAttribute(START_NANOS));
+                    }
+                }, this::write);
+    }
+
+    // Runs a client write on its own thread. Outcomes are still published while the server stops,
+    // and that must not fail the publisher; the exchanges are closed with the server anyway.
+    private void write(Runnable task) {
+        try {
+            writers.execute(task);
+        } catch (RejectedExecutionException e) {
+            System.err.println("Dropping client write, HTTP server is stopped");
+        }
+    }
+
+    // Pushes the account's transaction outcomes to one client until it disconnects. Frames wait in
+    // a bounded buffer and one writer at a time drains it, so events stay in order. A client that
+    // falls a full buffer behind is disconnected rather than holding outcomes for everyone else.
+    private class EventStream implements CompletionRegistry.Listener {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final String accountId;
+        private final BlockingQueue<Transaction> pending;
+        // Set while a writer owns the buffer
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private ScheduledFuture<?> heartbeat;
+
+        private EventStream(HttpExchange exchange, String accountId) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.accountId = accountId;
+            this.pending = new ArrayBlockingQueue<>(eventStreamBuffer);
+        }
+
+        private void open() {
+            paymentService.getCompletions().subscribe(accountId, this);
+            // Comment frames keep proxies from timing the stream out and reveal clients that went away
+            heartbeat = notifier.scheduleWithFixedDelay(() -> enqueue(HEARTBEAT),
+                    0, EVENT_HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onCompletion(Transaction transaction) {
+            enqueue(transaction);
+        }
+
+        private void enqueue(Transaction transaction) {
+            if (closed.get()) {
+                return;
+            }
+            if (!pending.offer(transaction)) {
+                System.err.println("Closing event stream for " + accountId + ": client is "
+                        + eventStreamBuffer + " events behind");
+                close();
+                return;
+            }
+            if (draining.compareAndSet(false, true)) {
+                write(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Transaction transaction;
+                while ((transaction = pending.poll()) != null && !closed.get()) {
+                    send(transaction);
+                }
+                draining.set(false);
+                // A frame queued after the last poll but before the flag was cleared has no writer yet
+                if (pending.isEmpty() || closed.get() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private void send(Transaction transaction) {
+            if (transaction == HEARTBEAT) {
+                try {
+                    out.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                }
+                return;
+            }
+            JsonWriter json = JsonWriter.acquire();
+            try {
+                writeTransaction(json, transaction);
+                out.write(("id: " + transaction.getTransactionId() + "\nevent: " + transaction.getStatus().name()
+                        + "\ndata: ").getBytes(StandardCharsets.UTF_8));
+                json.writeTo(out);
+                out.write("\n\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                close();
+            } finally {
+                JsonWriter.release(json);
+            }
+        }
+
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            paymentService.getCompletions().unsubscribe(accountId, this);
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+            }
+            pending.clear();
+            // Closing may write the final chunk, which must not block the publisher
+            write(exchange::close);
+        }
+    }
+
     // Deposit handler
     class DepositHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if (!"POST".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                sendError(exchange, 405, "Method not allowed");
                 return;
             }
 
             try {
-                String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                Map<String, String> params = parseJsonToMap(requestBody);
+                Map<String, String> params = JsonReader.readObject(exchange.getRequestBody());
 
                 String userId = params.get("userId");
-                BigDecimal amount = new BigDecimal(params.get("amount"));
+                long amount = Money.parseMinorUnits(params.get("amount"));
                 String idempotencyKey = params.get("idempotencyKey");
+                Transaction.Priority priority = parsePriority(params.get("priority"), Transaction.Priority.INTERACTIVE);
 
-                String transactionId = paymentService.processDeposit(userId, amount, idempotencyKey);
+                String transactionId = paymentService.processDeposit(userId, amount, idempotencyKey, priority);
 
-                String response = String.format(
-                        "{\"transactionId\":\"%s\",\"message\":\"Deposit request processed\"}",
-                        transactionId
-                );
-                sendResponse(exchange, 202, response);
+                sendResponse(exchange, 202, JsonWriter.acquire().beginObject()
+                        .field("transactionId", transactionId)
+                        .field("message", "Deposit request processed")
+                        .endObject());
 
+            } catch (QueueRejectedException e) {
+                sendRejected(exchange, e);
+            } catch (DuplicateInProgressException e) {
+                sendError(exchange, 409, e.getMessage());
             } catch (Exception e) {
-                sendResponse(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+                sendError(exchange, 400, e.getMessage());
             }
         }
     }
@@ -137,30 +560,114 @@ public class HttpServer {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if (!"POST".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                sendError(exchange, 405, "Method not allowed");
                 return;
             }
 
             try {
-                String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                Map<String, String> params = parseJsonToMap(requestBody);
+                Map<String, String> params = JsonReader.readObject(exchange.getRequestBody());
 
                 String userId = params.get("userId");
-                BigDecimal amount = new BigDecimal(params.get("amount"));
+                long amount = Money.parseMinorUnits(params.get("amount"));
                 String idempotencyKey = params.get("idempotencyKey");
+                Transaction.Priority priority = parsePriority(params.get("priority"), Transaction.Priority.INTERACTIVE);
+
+                String transactionId = paymentService.processWithdrawal(userId, amount, idempotencyKey, priority);
 
-                String transactionId = paymentService.processWithdrawal(userId, amount, idempotencyKey);
+                sendResponse(exchange, 202, JsonWriter.acquire().beginObject()
+                        .field("transactionId", transactionId)
+                        .field("message", "Withdrawal request processed")
+                        .endObject());
 
-                String response = String.format(
-                        "{\"transactionId\":\"%s\",\"message\":\"Withdrawal request processed\"}",
-                        transactionId
-                );
-                sendResponse(exchange, 202, response);
+            } catch (QueueRejectedException e) {
+                sendRejected(exchange, e);
+            } catch (DuplicateInProgressException e) {
+                sendError(exchange, 409, e.getMessage());
+            } catch (Exception e) {
+                sendError(exchange, 400, e.getMessage());
+            }
+        }
+    }
+
+    // Bulk handler: the body is a JSON array of {type, userId, amount, idempotencyKey, priority} items
+    class BatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+
+            try {
+                List<PaymentRequest> requests = new ArrayList<>();
+                Map<Integer, String> itemErrors = new HashMap<>();
+
+                // Items are parsed as they stream in rather than buffering the whole body
+                JsonReader reader = new JsonReader(exchange.getRequestBody());
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (requests.size() == batchMaxItems) {
+                        sendError(exchange, 413, "Batch exceeds " + batchMaxItems + " items");
+                        return;
+                    }
+                    Map<String, String> item = reader.readObject();
+                    try {
+                        requests.add(toPaymentRequest(item));
+                    } catch (Exception e) {
+                        itemErrors.put(requests.size(), "Invalid item: " + e.getMessage());
+                        requests.add(new PaymentRequest(null, null, 0, null));
+                    }
+                }
+                if (!itemErrors.isEmpty()) {
+                    throw new BatchRejectedException(itemErrors);
+                }
+                if (requests.isEmpty()) {
+                    sendError(exchange, 400, "Batch is empty");
+                    return;
+                }
+
+                List<String> transactionIds = paymentService.processBatch(requests);
+
+                JsonWriter json = JsonWriter.acquire().beginObject()
+                        .field("count", transactionIds.size())
+                        .name("transactions").beginArray();
+                for (int i = 0; i < transactionIds.size(); i++) {
+                    json.beginObject()
+                            .field("idempotencyKey", requests.get(i).getIdempotencyKey())
+                            .field("transactionId", transactionIds.get(i))
+                            .endObject();
+                }
+                sendResponse(exchange, 202, json.endArray().endObject());
 
+            } catch (BatchRejectedException e) {
+                JsonWriter json = JsonWriter.acquire().beginObject()
+                        .field("error", e.getMessage())
+                        .name("items").beginArray();
+                for (Map.Entry<Integer, String> entry : e.getItemErrors().entrySet()) {
+                    json.beginObject()
+                            .field("index", entry.getKey())
+                            .field("error", entry.getValue())
+                            .endObject();
+                }
+                sendResponse(exchange, 400, json.endArray().endObject());
+            } catch (QueueRejectedException e) {
+                sendRejected(exchange, e);
+            } catch (DuplicateInProgressException e) {
+                sendError(exchange, 409, e.getMessage());
             } catch (Exception e) {
-                sendResponse(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+                sendError(exchange, 400, e.getMessage());
             }
         }
+
+        private PaymentRequest toPaymentRequest(Map<String, String> item) {
+            String type = item.get("type");
+            return new PaymentRequest(
+                    type == null ? null : Transaction.TransactionType.valueOf(type.toUpperCase()),
+                    item.get("userId"),
+                    Money.parseMinorUnits(item.get("amount")),
+                    item.get("idempotencyKey"),
+                    parsePriority(item.get("priority"), null));
+        }
     }
 
     // Balance handler
@@ -168,7 +675,7 @@ public class HttpServer {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if (!"GET".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                sendError(exchange, 405, "Method not allowed");
                 return;
             }
 
@@ -178,16 +685,16 @@ public class HttpServer {
 
                 User user = paymentService.getUserById(userId);
                 if (user != null) {
-                    String response = String.format(
-                            "{\"userId\":\"%s\",\"balance\":%s,\"currency\":\"%s\"}",
-                            user.getUserId(), user.getBalance().toString(), user.getCurrency()
-                    );
-                    sendResponse(exchange, 200, response);
+                    sendResponse(exchange, 200, JsonWriter.acquire().beginObject()
+                            .field("userId", user.getUserId())
+                            .field("balance", user.getBalance())
+                            .field("currency", user.getCurrency().name())
+                            .endObject());
                 } else {
-                    sendResponse(exchange, 404, "{\"error\":\"User not found\"}");
+                    sendError(exchange, 404, "User not found");
                 }
             } catch (Exception e) {
-                sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+                sendError(exchange, 500, e.getMessage());
             }
         }
     }
@@ -196,37 +703,329 @@ public class HttpServer {
     class HealthHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            sendResponse(exchange, 200, "{\"status\":\"healthy\",\"timestamp\":\"" + java.time.Instant.now() + "\"}");
+            AccountCache cache = paymentService.getAccountCache();
+            JsonWriter json = JsonWriter.acquire().beginObject()
+                    .field("status", "healthy")
+                    .field("timestamp", java.time.Instant.now().toString());
+            TransactionQueue queue = paymentService.getQueue();
+            json.name("queue").beginObject()
+                    .field("depth", queue.size())
+                    .field("capacity", queue.getCapacity())
+                    .field("highWatermark", queue.getHighWatermark())
+                    .field("enqueued", queue.getEnqueuedCount())
+                    .field("shed", queue.getShedCount())
+                    .field("rejectedFull", queue.getRejectedFullCount());
+            json.name("lanes").beginObject();
+            for (Transaction.Priority priority : Transaction.Priority.values()) {
+                LatencyHistogram wait = queue.getLaneWait(priority);
+                json.name(priority.name()).beginObject()
+                        .field("depth", queue.getLaneDepth(priority))
+                        .field("capacity", queue.getLaneCapacity(priority))
+                        .field("weight", queue.getLaneWeight(priority))
+                        .field("dequeued", queue.getLaneDequeuedCount(priority))
+                        .field("waitP50Micros", wait.valueAtQuantile(0.5) / 1000)
+                        .field("waitP99Micros", wait.valueAtQuantile(0.99) / 1000)
+                        .endObject();
+            }
+            json.endObject().endObject();
+            json.name("accountCache").beginObject()
+                    .field("size", cache.size())
+                    .field("hits", cache.getHits())
+                    .field("misses", cache.getMisses())
+                    .field("evictions", cache.getEvictions())
+                    .name("hitRate").value(cache.getHitRate())
+                    .endObject();
+            AccountDirectory directory = paymentService.getAccountDirectory();
+            if (directory != null) {
+                json.name("accountDirectory").beginObject()
+                        .field("accounts", directory.size())
+                        .field("knownMissing", directory.missingSize())
+                        .endObject();
+            }
+            CompletionRegistry completions = paymentService.getCompletions();
+            json.name("completions").beginObject()
+                    .field("waiting", completions.getWaiterCount())
+                    .field("eventStreams", completions.getSubscriberCount())
+                    .endObject();
+            json.name("ledger").beginObject()
+                    .field("mode", paymentService.getLedgerMode().name());
+            LedgerEngine engine = paymentService.getLedgerEngine();
+            if (engine != null) {
+                json.field("partitions", engine.getPartitionCount())
+                        .field("accounts", engine.getAccountCount());
+            }
+            json.endObject();
+            json.name("http").beginObject()
+                    .field("transport", transport.name());
+            if (nioServer != null) {
+                json.field("connections", nioServer.getOpenConnections())
+                        .field("activeExchanges", nioServer.getActiveExchanges())
+                        .field("pooledBuffers", nioServer.getPooledBuffers());
+            }
+            json.endObject();
+            sendResponse(exchange, 200, json.endObject());
+        }
+    }
+
+    // Prometheus scrape endpoint
+    class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+
+            PrometheusWriter metrics = new PrometheusWriter();
+
+            metrics.header("payment_http_request_duration_seconds", "summary", "HTTP request handling time by endpoint");
+            for (Map.Entry<String, LatencyHistogram> entry : Metrics.getHttpLatency().entrySet()) {
+                metrics.summary("payment_http_request_duration_seconds",
+                        PrometheusWriter.label("endpoint", entry.getKey()), entry.getValue());
+            }
+            metrics.header("payment_http_responses_total", "counter", "HTTP responses by endpoint and status code");
+            for (Map.Entry<String, LongAdder> entry : Metrics.getHttpResponses().entrySet()) {
+                String[] key = entry.getKey().split(" ", 2);
+                metrics.sample("payment_http_responses_total",
+                        PrometheusWriter.label("endpoint", key[0]) + "," + PrometheusWriter.label("status", key[1]),
+                        entry.getValue().sum());
+            }
+
+            metrics.header("payment_stage_duration_seconds", "summary", "Time spent in each stage of the payment pipeline");
+            stage(metrics, "validation", Metrics.VALIDATION);
+            stage(metrics, "enqueue", Metrics.ENQUEUE);
+            stage(metrics, "queue_wait", Metrics.QUEUE_WAIT);
+            stage(metrics, "execute", Metrics.EXECUTE);
+            stage(metrics, "ledger_post", Metrics.LEDGER_POST);
+            stage(metrics, "batch_flush", Metrics.BATCH_FLUSH);
+
+            metrics.counter("payment_transactions_completed_total", "Transactions executed successfully",
+                    Metrics.TRANSACTIONS_COMPLETED.sum());
+            metrics.counter("payment_transactions_failed_total", "Transactions that failed during execution",
+                    Metrics.TRANSACTIONS_FAILED.sum());
+            metrics.counter("payment_transactions_retried_total", "Transient failures scheduled for another attempt",
+                    Metrics.TRANSACTIONS_RETRIED.sum());
+            metrics.counter("payment_batch_flushes_total", "Group commits by the transaction batch writer",
+                    Metrics.BATCH_FLUSHES.sum());
+            metrics.counter("payment_batch_entries_total", "Entries written by the transaction batch writer",
+                    Metrics.BATCH_ENTRIES.sum());
+            metrics.counter("payment_netted_postings_total", "Postings applied through a per-account net balance update",
+                    Metrics.NETTED_POSTINGS.sum());
+            metrics.counter("payment_netted_updates_total", "Net balance updates, each covering several postings",
+                    Metrics.NETTED_UPDATES.sum());
+
+            TransactionQueue queue = paymentService.getQueue();
+            metrics.gauge("payment_queue_depth", "Transactions waiting in the queue", queue.size());
+            metrics.gauge("payment_queue_capacity", "Queue capacity", queue.getCapacity());
+            metrics.counter("payment_queue_enqueued_total", "Transactions accepted into the queue", queue.getEnqueuedCount());
+            metrics.counter("payment_queue_shed_total", "Requests shed above the high watermark", queue.getShedCount());
+            metrics.counter("payment_queue_rejected_full_total", "Requests rejected because the queue was full",
+                    queue.getRejectedFullCount());
+            metrics.gauge("payment_journal_segments", "Journal segment files on disk", queue.getJournalSegmentCount());
+            metrics.gauge("payment_journal_pinned_segments",
+                    "Journal segments kept only because an older segment has a pending entry",
+                    queue.getJournalPinnedSegmentCount());
+            metrics.counter("payment_journal_compacted_total", "Pending journal entries moved out of old segments",
+                    queue.getJournalCompactedCount());
+            metrics.header("payment_queue_lane_depth", "gauge", "Transactions waiting in each priority lane");
+            for (Transaction.Priority priority : Transaction.Priority.values()) {
+                metrics.sample("payment_queue_lane_depth", PrometheusWriter.label("lane", priority.name()),
+                        queue.getLaneDepth(priority));
+            }
+            metrics.header("payment_queue_lane_dequeued_total", "counter", "Transactions taken from each priority lane");
+            for (Transaction.Priority priority : Transaction.Priority.values()) {
+                metrics.sample("payment_queue_lane_dequeued_total", PrometheusWriter.label("lane", priority.name()),
+                        queue.getLaneDequeuedCount(priority));
+            }
+            metrics.header("payment_queue_lane_wait_seconds", "summary", "Time spent queued in each priority lane");
+            for (Transaction.Priority priority : Transaction.Priority.values()) {
+                metrics.summary("payment_queue_lane_wait_seconds", PrometheusWriter.label("lane", priority.name()),
+                        queue.getLaneWait(priority));
+            }
+
+            AccountCache cache = paymentService.getAccountCache();
+            metrics.gauge("payment_account_cache_size", "Accounts held in the cache", cache.size());
+            metrics.counter("payment_account_cache_hits_total", "Account cache hits", cache.getHits());
+            metrics.counter("payment_account_cache_misses_total", "Account cache misses", cache.getMisses());
+            metrics.counter("payment_account_cache_evictions_total", "Account cache evictions", cache.getEvictions());
+
+            if (nioServer != null) {
+                metrics.gauge("payment_http_connections", "Open client connections", nioServer.getOpenConnections());
+                metrics.gauge("payment_http_active_exchanges", "Requests being handled or awaiting their response",
+                        nioServer.getActiveExchanges());
+            }
+
+            // One sample per shard
+            List<ConnectionPool> shards = DBManager.getShardDataSources();
+            if (!shards.isEmpty()) {
+                shard(metrics, shards, "payment_db_pool_connections", "gauge", "Open pooled connections",
+                        ConnectionPool::getTotalConnections);
+                shard(metrics, shards, "payment_db_pool_active", "gauge", "Connections leased out",
+                        ConnectionPool::getActiveConnections);
+                shard(metrics, shards, "payment_db_pool_idle", "gauge", "Idle pooled connections",
+                        ConnectionPool::getIdleConnections);
+                shard(metrics, shards, "payment_db_pool_pending", "gauge", "Callers waiting for a connection",
+                        ConnectionPool::getPendingAcquires);
+                shard(metrics, shards, "payment_db_statement_cache_size", "gauge",
+                        "Idle prepared statements cached on idle connections", ConnectionPool::getCachedStatements);
+                shard(metrics, shards, "payment_db_statement_cache_hits_total", "counter",
+                        "Prepared statements reused from the cache", ConnectionPool::getStatementCacheHits);
+                shard(metrics, shards, "payment_db_statement_cache_misses_total", "counter",
+                        "Prepared statements prepared anew", ConnectionPool::getStatementCacheMisses);
+                shard(metrics, shards, "payment_db_statement_cache_evictions_total", "counter",
+                        "Cached statements closed to stay within the bound", ConnectionPool::getStatementCacheEvictions);
+            }
+
+            byte[] body = metrics.toByteArray();
+            exchange.getResponseHeaders().set("Content-Type", PrometheusWriter.CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+
+        private void stage(PrometheusWriter metrics, String stage, LatencyHistogram histogram) {
+            metrics.summary("payment_stage_duration_seconds", PrometheusWriter.label("stage", stage), histogram);
+        }
+
+        private void shard(PrometheusWriter metrics, List<ConnectionPool> shards, String name, String type, String help,
+                           ToLongFunction<ConnectionPool> value) {
+            metrics.header(name, type, help);
+            for (int i = 0; i < shards.size(); i++) {
+                metrics.sample(name, PrometheusWriter.label("shard", Integer.toString(i)), value.applyAsLong(shards.get(i)));
+            }
         }
     }
 
     // Utility methods
-    private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, response.getBytes().length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes());
+    private void sendResponse(HttpExchange exchange, int statusCode, JsonWriter json) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(statusCode, json.size());
+            try (OutputStream os = exchange.getResponseBody()) {
+                json.writeTo(os);
+            }
+        } finally {
+            JsonWriter.release(json);
         }
     }
 
-    private String extractUserIdFromPath(String path) {
-        String[] parts = path.split("/");
-        return parts.length > 2 ? parts[2] : "";
+    // Buffers the body and only switches to a chunked response once it outgrows one chunk,
+    // so errors raised before that can still be answered with a normal error response
+    private class StreamedResponse {
+        private final HttpExchange exchange;
+        private final JsonWriter json = JsonWriter.acquire();
+        private OutputStream out;
+        private boolean released;
+
+        private StreamedResponse(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        private void flushIfFull() throws IOException {
+            if (json.size() < STREAM_CHUNK_BYTES) {
+                return;
+            }
+            if (out == null) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, 0);
+                out = exchange.getResponseBody();
+            }
+            json.flushTo(out);
+        }
+
+        private void finish(JsonWriter completed) throws IOException {
+            if (out == null) {
+                released = true;
+                sendResponse(exchange, 200, completed);
+                return;
+            }
+            json.flushTo(out);
+            out.close();
+        }
+
+        // Always called. The body stream is only closed by finish(): closing it after a failure
+        // would end a cut-short chunked body as if it were complete, so sendError drops the
+        // connection instead.
+        private void close() {
+            if (!released) {
+                released = true;
+                JsonWriter.release(json);
+            }
+        }
+    }
+
+    private void writeTransaction(JsonWriter json, Transaction transaction) {
+        json.beginObject()
+                .field("transactionId", transaction.getTransactionId())
+                .field("accountId", transaction.getAccountId())
+                .field("amount", transaction.getAmount())
+                .field("type", transaction.getType() != null ? transaction.getType().name() : null)
+                .field("status", transaction.getStatus().name())
+                .field("prevBalance", transaction.getPrevBalance())
+                .field("newBalance", transaction.getNewBalance())
+                .field("failureReason", transaction.getFailureReason())
+                .field("attempts", transaction.getAttempts())
+                .field("creationTime", transaction.getCreationTime() != null ? transaction.getCreationTime().toString() : null)
+                .field("processedTime", transaction.getProcessedTime() != null ? transaction.getProcessedTime().toString() : null)
+                .endObject();
+    }
+
+    // "<epoch seconds>.<nanos>:<id>". Cutting the time to milliseconds would skip older rows created
+    // in the same millisecond as the last row of the page.
+    private static String encodeCursor(Transaction transaction) {
+        Instant time = transaction.getCreationTime();
+        String cursor = time.getEpochSecond() + "." + time.getNano() + ":" + transaction.getTransactionId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Cursors handed out before nanosecond precision carry epoch milliseconds
+    private static Instant decodeCursorTime(String time) {
+        int dot = time.indexOf('.');
+        if (dot < 0) {
+            return Instant.ofEpochMilli(Long.parseLong(time));
+        }
+        return Instant.ofEpochSecond(Long.parseLong(time.substring(0, dot)), Long.parseLong(time.substring(dot + 1)));
     }
 
-    private Map<String, String> parseJsonToMap(String json) {
-        Map<String, String> map = new java.util.HashMap<>();
-        json = json.trim().substring(1, json.length() - 1); // Remove { }
+    // Selects the queue lane; absent means the endpoint's default
+    private static Transaction.Priority parsePriority(String value, Transaction.Priority defaultPriority) {
+        return value == null ? defaultPriority : Transaction.Priority.valueOf(value.toUpperCase());
+    }
 
-        String[] pairs = json.split(",");
-        for (String pair : pairs) {
-            String[] keyValue = pair.split(":");
-            if (keyValue.length == 2) {
-                String key = keyValue[0].trim().replaceAll("\"", "");
-                String value = keyValue[1].trim().replaceAll("\"", "");
-                map.put(key, value);
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
             }
         }
-        return map;
+        return params;
+    }
+
+    // Once the status line has gone out another one cannot be sent, so the failure is rethrown and
+    // the transport drops the connection, leaving the client with a visibly incomplete response
+    private void sendError(HttpExchange exchange, int statusCode, String message) throws IOException {
+        if (exchange.getResponseCode() != -1) {
+            throw new IOException("Response already started, aborting: " + message);
+        }
+        sendResponse(exchange, statusCode, JsonWriter.acquire().beginObject().field("error", message).endObject());
+    }
+
+    // 429 while shedding above the high watermark, 503 once the queue is full
+    private void sendRejected(HttpExchange exchange, QueueRejectedException e) throws IOException {
+        int statusCode = e.getReason() == QueueRejectedException.Reason.FULL ? 503 : 429;
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(e.getRetryAfterSeconds()));
+        sendError(exchange, statusCode, e.getMessage());
+    }
+
+    private String extractUserIdFromPath(String path) {
+        String[] parts = path.split("/");
+        return parts.length > 2 ? parts[2] : "";
     }
 }
@@ -0,0 +1,257 @@
+package api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// Minimal pull parser that reads request fields straight from the body stream.
+// Scalars are returned as strings; nested objects and arrays inside an object are skipped.
+// A top-level array of objects can be read one element at a time with beginArray()/hasNext().
+public class JsonReader {
+    private static final int MAX_STRING_BYTES = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[4096];
+    private int position = 0;
+    private int limit = 0;
+    private byte[] scratch = new byte[128];
+    private boolean atArrayStart = false;
+
+    public JsonReader(InputStream in) {
+        this.in = in;
+    }
+
+    public static Map<String, String> readObject(InputStream in) throws IOException {
+        return new JsonReader(in).readObject();
+    }
+
+    public Map<String, String> readObject() throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        expect('{');
+
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return fields;
+        }
+        while (true) {
+            if (c != '"') {
+                throw syntaxError("Expected field name");
+            }
+            String name = readString();
+            expect(':');
+
+            c = nextNonWhitespace();
+            if (c == '{' || c == '[') {
+                skipNested(c);
+            } else {
+                fields.put(name, readScalar(c));
+            }
+
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return fields;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    public void beginArray() throws IOException {
+        expect('[');
+        atArrayStart = true;
+    }
+
+    // Consumes the separator before the next element; false once the closing bracket is read
+    public boolean hasNext() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == ']') {
+            atArrayStart = false;
+            return false;
+        }
+        if (atArrayStart) {
+            atArrayStart = false;
+            unread(c);
+            return true;
+        }
+        if (c != ',') {
+            throw syntaxError("Expected ',' or ']'");
+        }
+        return true;
+    }
+
+    private String readScalar(int first) throws IOException {
+        if (first == '"') {
+            return readString();
+        }
+
+        // Numbers and literals are kept verbatim so amounts reach BigDecimal untouched
+        int length = 0;
+        int c = first;
+        while (c != -1 && c != ',' && c != '}' && c != ']' && !isWhitespace(c)) {
+            ensureScratch(length + 1);
+            scratch[length++] = (byte) c;
+            c = read();
+        }
+        unread(c);
+        if (length == 0) {
+            throw syntaxError("Expected value");
+        }
+        if (length == 4 && scratch[0] == 'n' && scratch[1] == 'u' && scratch[2] == 'l' && scratch[3] == 'l') {
+            return null;
+        }
+        return new String(scratch, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    // Called after the opening quote; decodes escapes and leaves UTF-8 bytes as-is
+    private String readString() throws IOException {
+        int length = 0;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+            if (c == '"') {
+                return new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+            if (length >= MAX_STRING_BYTES) {
+                throw syntaxError("String value too long");
+            }
+            if (c == '\\') {
+                int escaped = read();
+                switch (escaped) {
+                    case '"', '\\', '/' -> c = escaped;
+                    case 'b' -> c = '\b';
+                    case 'f' -> c = '\f';
+                    case 'n' -> c = '\n';
+                    case 'r' -> c = '\r';
+                    case 't' -> c = '\t';
+                    case 'u' -> {
+                        length = appendCodePoint(length, readUnicodeEscape());
+                        continue;
+                    }
+                    default -> throw syntaxError("Invalid escape sequence");
+                }
+            } else if (c < 0x20) {
+                throw syntaxError("Unescaped control character in string");
+            }
+            ensureScratch(length + 1);
+            scratch[length++] = (byte) c;
+        }
+    }
+
+    private int readUnicodeEscape() throws IOException {
+        int high = readHex4();
+        if (Character.isHighSurrogate((char) high)) {
+            if (read() == '\\' && read() == 'u') {
+                int low = readHex4();
+                if (Character.isLowSurrogate((char) low)) {
+                    return Character.toCodePoint((char) high, (char) low);
+                }
+            }
+            throw syntaxError("Invalid surrogate pair");
+        }
+        return high;
+    }
+
+    private int readHex4() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+                throw syntaxError("Invalid unicode escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private int appendCodePoint(int length, int codePoint) {
+        ensureScratch(length + 4);
+        if (codePoint < 0x80) {
+            scratch[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            scratch[length++] = (byte) (0xC0 | (codePoint >> 6));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            scratch[length++] = (byte) (0xE0 | (codePoint >> 12));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            scratch[length++] = (byte) (0xF0 | (codePoint >> 18));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return length;
+    }
+
+    private void skipNested(int open) throws IOException {
+        int depth = 1;
+        while (depth > 0) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("Unterminated " + (open == '{' ? "object" : "array"));
+            }
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (nextNonWhitespace() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (isWhitespace(c));
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    // Only valid right after read() returned c
+    private void unread(int c) {
+        if (c != -1) {
+            position--;
+        }
+    }
+
+    private void ensureScratch(int capacity) {
+        if (capacity > scratch.length) {
+            byte[] grown = new byte[Math.max(capacity, scratch.length * 2)];
+            System.arraycopy(scratch, 0, grown, 0, scratch.length);
+            scratch = grown;
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
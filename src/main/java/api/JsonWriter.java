@@ -0,0 +1,276 @@
+package api;
+
+import models.Money;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Writes JSON as UTF-8 into a growable byte buffer that is pooled and reused across responses.
+public class JsonWriter {
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final int MAX_POOLED_WRITERS = 256;
+    private static final int MAX_DEPTH = 32;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final ConcurrentLinkedQueue<JsonWriter> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledCount = new AtomicInteger();
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+    private int depth = 0;
+    // Whether the container at each depth already holds a value and needs a comma before the next
+    private final boolean[] hasValue = new boolean[MAX_DEPTH];
+    private boolean afterName = false;
+
+    public static JsonWriter acquire() {
+        JsonWriter writer = pool.poll();
+        if (writer == null) {
+            return new JsonWriter();
+        }
+        pooledCount.decrementAndGet();
+        return writer;
+    }
+
+    public static void release(JsonWriter writer) {
+        // Oversized buffers are dropped so one large response does not pin memory
+        if (writer.buffer.length > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        if (pooledCount.incrementAndGet() > MAX_POOLED_WRITERS) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        writer.reset();
+        pool.offer(writer);
+    }
+
+    public JsonWriter reset() {
+        length = 0;
+        depth = 0;
+        afterName = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        writeByte('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        writeByte(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        if (depth > 0 && hasValue[depth - 1]) {
+            writeByte(',');
+        }
+        writeQuoted(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeQuoted(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter value(double value) {
+        beforeValue();
+        writeAscii(Double.isFinite(value) ? Double.toString(value) : "null");
+        return this;
+    }
+
+    public JsonWriter value(BigDecimal value) {
+        beforeValue();
+        writeAscii(value == null ? "null" : value.toPlainString());
+        return this;
+    }
+
+    // Written as a JSON number with two decimals, without going through BigDecimal
+    public JsonWriter value(Money value) {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+            return this;
+        }
+        long minor = value.getMinorUnits();
+        if (minor < 0) {
+            writeByte('-');
+        }
+        long abs = Math.abs(minor);
+        writeAscii(Long.toString(abs / 100));
+        writeByte('.');
+        writeByte('0' + (int) (abs % 100 / 10));
+        writeByte('0' + (int) (abs % 10));
+        return this;
+    }
+
+    public JsonWriter field(String name, String value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter field(String name, long value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter field(String name, BigDecimal value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter field(String name, Money value) {
+        return name(name).value(value);
+    }
+
+    public int size() {
+        return length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    // Writes out what has been buffered so far and keeps going, for responses streamed in chunks
+    public void flushTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, 0, copy, 0, length);
+        return copy;
+    }
+
+    private void push() {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting too deep");
+        }
+        hasValue[depth++] = false;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0 && hasValue[depth - 1]) {
+            writeByte(',');
+        }
+        if (depth > 0) {
+            hasValue[depth - 1] = true;
+        }
+    }
+
+    private void writeQuoted(String s) {
+        writeByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20) {
+                writeControl(c);
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[length++] = (byte) (0xC0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Lone surrogate: emit as an escape rather than producing invalid UTF-8
+                writeUnicodeEscape(c);
+            } else {
+                ensureCapacity(3);
+                buffer[length++] = (byte) (0xE0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeControl(char c) {
+        switch (c) {
+            case '\n' -> writeAscii("\\n");
+            case '\r' -> writeAscii("\\r");
+            case '\t' -> writeAscii("\\t");
+            case '\b' -> writeAscii("\\b");
+            case '\f' -> writeAscii("\\f");
+            default -> writeUnicodeEscape(c);
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        ensureCapacity(6);
+        buffer[length++] = '\\';
+        buffer[length++] = 'u';
+        buffer[length++] = HEX[(c >> 12) & 0xF];
+        buffer[length++] = HEX[(c >> 8) & 0xF];
+        buffer[length++] = HEX[(c >> 4) & 0xF];
+        buffer[length++] = HEX[c & 0xF];
+    }
+
+    private void writeAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(length + extra, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+}
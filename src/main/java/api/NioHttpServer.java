@@ -0,0 +1,1068 @@
+package api;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import config.AppConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Selector-based HTTP/1.1 front end for the same HttpHandlers the JDK server runs. A few event-loop
+// threads own all sockets: they read and parse requests and write responses, so idle and waiting
+// connections hold no thread. Handlers still run on the handler executor because they block on
+// the database. Connections are kept alive, and pipelined requests are answered one at a time in
+// the order they arrived. Read buffers are direct, pooled, and only held while a request is partial.
+// Each connection queues a bounded number of response bytes; past that, handler threads wait for
+// the client to read, and a client that stops reading for the write timeout is disconnected.
+public class NioHttpServer {
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final InetSocketAddress address;
+    private final Map<String, NioContext> contexts;
+    private final Executor executor;
+    private final int bufferBytes;
+    private final int maxBodyBytes;
+    private final long idleTimeoutMillis;
+    private final long maxPendingWriteBytes;
+    private final long writeTimeoutMillis;
+    private final BufferPool buffers;
+    private final List<EventLoop> loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean isRunning = false;
+    private volatile long dateSecond = -1;
+    private volatile String date;
+
+    public NioHttpServer(InetSocketAddress address, Map<String, HttpHandler> contexts, Executor executor) {
+        this(address, contexts, executor,
+                AppConfig.getInt("HTTP_NIO_EVENT_LOOPS", Math.min(4, Runtime.getRuntime().availableProcessors())),
+                AppConfig.getInt("HTTP_NIO_BUFFER_BYTES", 16 * 1024),
+                AppConfig.getInt("HTTP_NIO_BUFFER_POOL_SIZE", 1024),
+                AppConfig.getInt("HTTP_NIO_MAX_BODY_BYTES", 16 * 1024 * 1024),
+                AppConfig.getLong("HTTP_NIO_IDLE_TIMEOUT_SECONDS", 60),
+                AppConfig.getLong("HTTP_NIO_MAX_PENDING_WRITE_BYTES", 1024 * 1024),
+                AppConfig.getLong("HTTP_NIO_WRITE_TIMEOUT_SECONDS", 30));
+    }
+
+    public NioHttpServer(InetSocketAddress address, Map<String, HttpHandler> contexts, Executor executor,
+                         int eventLoops, int bufferBytes, int bufferPoolSize, int maxBodyBytes, long idleTimeoutSeconds,
+                         long maxPendingWriteBytes, long writeTimeoutSeconds) {
+        this.address = address;
+        Map<String, NioContext> nioContexts = new HashMap<>();
+        contexts.forEach((path, handler) -> nioContexts.put(path, new NioContext(path, handler)));
+        this.contexts = Map.copyOf(nioContexts);
+        this.executor = executor;
+        this.bufferBytes = Math.max(1024, bufferBytes);
+        this.maxBodyBytes = Math.max(0, maxBodyBytes);
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, idleTimeoutSeconds));
+        this.maxPendingWriteBytes = Math.max(this.bufferBytes, maxPendingWriteBytes);
+        this.writeTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, writeTimeoutSeconds));
+        this.buffers = new BufferPool(this.bufferBytes, bufferPoolSize);
+        this.loops = new ArrayList<>(Math.max(1, eventLoops));
+        for (int i = 0; i < Math.max(1, eventLoops); i++) {
+            loops.add(new EventLoop());
+        }
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, 1024);
+        isRunning = true;
+        for (int i = 0; i < loops.size(); i++) {
+            EventLoop loop = loops.get(i);
+            loop.thread = new Thread(loop, "http-nio-loop-" + i);
+            loop.thread.setDaemon(true);
+            loop.thread.start();
+        }
+        acceptor = new Thread(this::accept, "http-nio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Stops accepting, gives in-flight exchanges up to delaySeconds to finish, then closes every connection
+    public void stop(int delaySeconds) {
+        if (!isRunning) {
+            return;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delaySeconds);
+        try {
+            while (activeExchanges.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            isRunning = false;
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+                loop.thread.join(1000);
+            }
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public int getActiveExchanges() {
+        return activeExchanges.get();
+    }
+
+    public int getPooledBuffers() {
+        return buffers.size();
+    }
+
+    // Accepting is a blocking call on its own thread; new sockets are spread over the loops round-robin
+    private void accept() {
+        while (isRunning) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
+                loop.execute(() -> loop.register(channel));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Same rule as the JDK server: the longest context path that prefixes the request path
+    private NioContext contextFor(String path) {
+        NioContext matched = null;
+        for (NioContext context : contexts.values()) {
+            String prefix = context.getPath();
+            if (path.startsWith(prefix) && (matched == null || prefix.length() > matched.getPath().length())) {
+                matched = context;
+            }
+        }
+        return matched;
+    }
+
+    private String date() {
+        long now = System.currentTimeMillis() / 1000;
+        if (now != dateSecond) {
+            date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+            dateSecond = now;
+        }
+        return date;
+    }
+
+    private static String reason(int statusCode) {
+        switch (statusCode) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "";
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Only touched on the loop thread
+        private final Set<Connection> connections = new HashSet<>();
+        private Thread thread;
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        private EventLoop() {
+            try {
+                this.selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open selector: " + e.getMessage(), e);
+            }
+        }
+
+        // Runs the task on the loop thread; safe to call from any thread
+        private void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+                openConnections.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("Error registering connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                try {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushWrites();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    }
+                    closeIdle();
+                } catch (Exception e) {
+                    System.err.println("Error in HTTP event loop: " + e.getMessage());
+                }
+            }
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing selector: " + e.getMessage());
+            }
+        }
+
+        // Keep-alive connections with no request in progress are closed after the idle timeout
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < 1000) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (Connection connection : new ArrayList<>(connections)) {
+                if (connection.exchange == null && now - connection.lastActivity > idleTimeoutMillis) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    // Socket state is only touched on its loop thread; handlers reach it through send() and abort()
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Bytes in pendingWrites not yet written; producers wait on writeRoom while it is at the cap
+        private final AtomicLong pendingWriteBytes = new AtomicLong();
+        private final Object writeRoom = new Object();
+        private SelectionKey key;
+        // Unparsed input in write mode, or null when nothing is buffered
+        private ByteBuffer in;
+        // Request whose head is parsed but whose body is still arriving
+        private Request partial;
+        private NioExchange exchange;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean closeAfterWrites = false;
+        private volatile boolean closed = false;
+
+        private Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        private void read() {
+            if (in == null) {
+                in = buffers.acquire();
+            }
+            int count;
+            try {
+                count = channel.read(in);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            parseBuffered();
+        }
+
+        // Dispatches every complete request in the buffer, stopping while one is being handled
+        private void parseBuffered() {
+            if (in == null) {
+                updateInterest();
+                return;
+            }
+            in.flip();
+            try {
+                while (exchange == null && !closed && !closeAfterWrites) {
+                    if (partial == null) {
+                        int end = headerEnd(in);
+                        if (end < 0) {
+                            if (in.position() == 0 && in.limit() == in.capacity()) {
+                                reject(431);
+                            }
+                            break;
+                        }
+                        partial = parseHead(end);
+                        if (partial == null) {
+                            break;
+                        }
+                    }
+                    int available = Math.min(partial.length - partial.filled, in.remaining());
+                    partial.reserve(partial.filled + available);
+                    in.get(partial.body, partial.filled, available);
+                    partial.filled += available;
+                    if (partial.filled < partial.length) {
+                        break;
+                    }
+                    Request request = partial;
+                    partial = null;
+                    dispatch(request);
+                }
+            } finally {
+                if (in != null) {
+                    if (in.hasRemaining()) {
+                        in.compact();
+                    } else {
+                        buffers.release(in);
+                        in = null;
+                    }
+                }
+                if (!closed) {
+                    updateInterest();
+                }
+            }
+        }
+
+        // Parses the request line and headers ending at end; answers and closes on malformed input
+        private Request parseHead(int end) {
+            byte[] head = new byte[end - in.position()];
+            in.get(head);
+            in.position(in.position() + 4);
+            String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                reject(400);
+                return null;
+            }
+            Request request = new Request();
+            request.method = requestLine[0];
+            request.protocol = requestLine[2];
+            try {
+                request.uri = new URI(requestLine[1]);
+            } catch (Exception e) {
+                reject(400);
+                return null;
+            }
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    reject(400);
+                    return null;
+                }
+                request.headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+
+            if (request.headers.containsKey("Transfer-Encoding")) {
+                reject(501);
+                return null;
+            }
+            long length;
+            try {
+                String contentLength = request.headers.getFirst("Content-Length");
+                length = contentLength != null ? Long.parseLong(contentLength) : 0;
+            } catch (NumberFormatException e) {
+                reject(400);
+                return null;
+            }
+            if (length < 0) {
+                reject(400);
+                return null;
+            }
+            if (length > maxBodyBytes) {
+                reject(413);
+                return null;
+            }
+            // The body buffer grows as bytes arrive, so a declared length alone holds no memory
+            request.length = (int) length;
+            request.body = new byte[Math.min(request.length, bufferBytes)];
+
+            String connection = request.headers.getFirst("Connection");
+            request.keepAlive = request.protocol.equals("HTTP/1.0") ?
+                    "keep-alive".equalsIgnoreCase(connection) : !"close".equalsIgnoreCase(connection);
+            if (length > in.remaining() && "100-continue".equalsIgnoreCase(request.headers.getFirst("Expect"))) {
+                send(ByteBuffer.wrap(CONTINUE));
+            }
+            return request;
+        }
+
+        private void dispatch(Request request) {
+            NioContext context = contextFor(request.uri.getPath() != null ? request.uri.getPath() : "/");
+            exchange = new NioExchange(this, request, context);
+            activeExchanges.incrementAndGet();
+            NioExchange current = exchange;
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (context == null) {
+                            current.sendEmpty(404);
+                            return;
+                        }
+                        new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(current);
+                    } catch (Exception e) {
+                        // As the JDK server does, a handler that fails loses the connection, so a
+                        // response it had started is never completed as if it were whole
+                        System.err.println("Error handling " + request.method + " " + request.uri + ": " + e.getMessage());
+                        current.abort();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                current.keepAlive = false;
+                current.sendEmpty(503);
+            }
+        }
+
+        // Answers a request that could not be parsed and closes once the answer is written
+        private void reject(int statusCode) {
+            String response = "HTTP/1.1 " + statusCode + " " + reason(statusCode) + "\r\nDate: " + date()
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+            send(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+            closeAfterWrites = true;
+            partial = null;
+            in.position(in.limit());
+        }
+
+        // Queues bytes for the socket; safe to call from any thread
+        private void send(ByteBuffer data) {
+            pendingWriteBytes.addAndGet(data.remaining());
+            pendingWrites.add(data);
+            loop.execute(this::flushWrites);
+        }
+
+        // Waits while the queued bytes are at the cap. The loop thread never waits, since it is the
+        // one that drains the queue; it only queues small answers of its own.
+        private void awaitWriteRoom() throws IOException {
+            if (pendingWriteBytes.get() < maxPendingWriteBytes || Thread.currentThread() == loop.thread) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + writeTimeoutMillis;
+            synchronized (writeRoom) {
+                while (pendingWriteBytes.get() >= maxPendingWriteBytes && !closed) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        loop.execute(this::close);
+                        throw new IOException("Client did not read the response for " + writeTimeoutMillis + " ms");
+                    }
+                    try {
+                        writeRoom.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the client to read");
+                    }
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+        }
+
+        private void wrote(long bytes) {
+            if (bytes > 0 && pendingWriteBytes.getAndAdd(-bytes) >= maxPendingWriteBytes) {
+                synchronized (writeRoom) {
+                    writeRoom.notifyAll();
+                }
+            }
+        }
+
+        private void flushWrites() {
+            if (closed) {
+                pendingWrites.clear();
+                return;
+            }
+            long written = 0;
+            try {
+                ByteBuffer data;
+                while ((data = pendingWrites.peek()) != null) {
+                    written += channel.write(data);
+                    if (data.hasRemaining()) {
+                        wrote(written);
+                        updateInterest();
+                        return;
+                    }
+                    pendingWrites.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            wrote(written);
+            if (closeAfterWrites) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        // Called on the loop thread once the exchange's last bytes are queued
+        private void finish(NioExchange finished, boolean keepAlive) {
+            if (exchange != finished) {
+                return;
+            }
+            exchange = null;
+            lastActivity = System.currentTimeMillis();
+            if (!keepAlive) {
+                closeAfterWrites = true;
+                flushWrites();
+                return;
+            }
+            parseBuffered();
+        }
+
+        // Reads only while no request is being handled, so pipelined requests wait in the socket
+        private void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (exchange == null && !closeAfterWrites) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!pendingWrites.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing connection: " + e.getMessage());
+            }
+            if (in != null) {
+                buffers.release(in);
+                in = null;
+            }
+            pendingWrites.clear();
+            // Producers waiting for room fail now rather than at their timeout
+            synchronized (writeRoom) {
+                writeRoom.notifyAll();
+            }
+            loop.connections.remove(this);
+            openConnections.decrementAndGet();
+        }
+    }
+
+    private static final class Request {
+        private String method;
+        private URI uri;
+        private String protocol;
+        private final Headers headers = new Headers();
+        private byte[] body;
+        private int length;
+        private int filled;
+        private boolean keepAlive;
+
+        private void reserve(int needed) {
+            if (needed > body.length) {
+                body = Arrays.copyOf(body, Math.min(length, Math.max(needed, body.length * 2)));
+            }
+        }
+    }
+
+    // The path and handler the server was given, plus the filters and attributes handlers may add
+    private static final class NioContext extends HttpContext {
+        private final String path;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private volatile HttpHandler handler;
+        private volatile Authenticator authenticator;
+
+        private NioContext(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        // As in the JDK server, a context's handler is only set once
+        @Override
+        public void setHandler(HttpHandler handler) {
+            if (handler == null) {
+                throw new NullPointerException("Null handler parameter");
+            }
+            if (this.handler != null) {
+                throw new IllegalArgumentException("Handler already set");
+            }
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        // There is no com.sun.net.httpserver.HttpServer behind this transport
+        @Override
+        public com.sun.net.httpserver.HttpServer getServer() {
+            return null;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        // Stored for handlers that look it up; requests are not authenticated by this transport
+        @Override
+        public Authenticator setAuthenticator(Authenticator authenticator) {
+            Authenticator previous = this.authenticator;
+            this.authenticator = authenticator;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    // One request and its response. Handlers may answer from any thread, including after handle() returned.
+    private class NioExchange extends HttpExchange {
+        private final Connection connection;
+        private final Request request;
+        // Null when no context matched the path
+        private final NioContext context;
+        private final Headers responseHeaders = new Headers();
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final ResponseStream responseBody = new ResponseStream();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private InputStream requestBody;
+        private OutputStream responseStream = responseBody;
+        private volatile int responseCode = -1;
+        private volatile boolean keepAlive;
+
+        private NioExchange(Connection connection, Request request, NioContext context) {
+            this.connection = connection;
+            this.request = request;
+            this.context = context;
+            this.requestBody = new ByteArrayInputStream(request.body);
+            this.keepAlive = request.keepAlive;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return request.headers;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return request.uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return request.method;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return context;
+        }
+
+        // Ends the exchange; without a response the connection is dropped
+        @Override
+        public void close() {
+            if (responseCode == -1) {
+                abort();
+                return;
+            }
+            try {
+                responseBody.close();
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return responseStream;
+        }
+
+        // Same length convention as the JDK server: positive is fixed, 0 is chunked, -1 is no body
+        @Override
+        public synchronized void sendResponseHeaders(int statusCode, long responseLength) throws IOException {
+            if (responseCode != -1) {
+                throw new IOException("Response headers already sent");
+            }
+            if (connection.closed) {
+                throw new IOException("Connection closed");
+            }
+            StringBuilder head = new StringBuilder(256)
+                    .append(request.protocol.equals("HTTP/1.0") ? "HTTP/1.0 " : "HTTP/1.1 ")
+                    .append(statusCode).append(' ').append(reason(statusCode)).append("\r\n")
+                    .append("Date: ").append(date()).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            if (responseLength > 0) {
+                head.append("Content-Length: ").append(responseLength).append("\r\n");
+            } else if (responseLength == 0) {
+                if (request.protocol.equals("HTTP/1.0")) {
+                    // No chunked encoding in 1.0; the end of the body is the end of the connection
+                    keepAlive = false;
+                } else {
+                    head.append("Transfer-Encoding: chunked\r\n");
+                }
+            } else {
+                head.append("Content-Length: 0\r\n");
+            }
+            if (!keepAlive) {
+                head.append("Connection: close\r\n");
+            } else if (request.protocol.equals("HTTP/1.0")) {
+                head.append("Connection: keep-alive\r\n");
+            }
+            head.append("\r\n");
+
+            responseCode = statusCode;
+            responseBody.begin(head.toString().getBytes(StandardCharsets.ISO_8859_1), responseLength,
+                    responseLength == 0 && !request.protocol.equals("HTTP/1.0"));
+            if (responseLength == -1) {
+                responseBody.close();
+            }
+        }
+
+        private void sendEmpty(int statusCode) {
+            try {
+                sendResponseHeaders(statusCode, -1);
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            try {
+                return (InetSocketAddress) connection.channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            try {
+                return (InetSocketAddress) connection.channel.getLocalAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getProtocol() {
+            return request.protocol;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            if (value == null) {
+                attributes.remove(name);
+            } else {
+                attributes.put(name, value);
+            }
+        }
+
+        @Override
+        public void setStreams(InputStream in, OutputStream out) {
+            if (in != null) {
+                requestBody = in;
+            }
+            if (out != null) {
+                responseStream = out;
+            }
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+
+        private void finish(boolean reuse) {
+            if (finished.compareAndSet(false, true)) {
+                activeExchanges.decrementAndGet();
+                connection.loop.execute(() -> connection.finish(this, reuse));
+            }
+        }
+
+        private void abort() {
+            if (finished.compareAndSet(false, true)) {
+                activeExchanges.decrementAndGet();
+            }
+            connection.loop.execute(connection::close);
+        }
+
+        // Collects the body and hands it to the connection on flush and close, framed as chunks
+        // when the length was not given up front. Writing after the client went away fails, and
+        // writing to a client that has fallen too far behind waits for it.
+        private class ResponseStream extends OutputStream {
+            private byte[] head;
+            private byte[] buffer = new byte[0];
+            private int count;
+            private long remaining;
+            private boolean chunked;
+            private boolean started = false;
+            private boolean closed = false;
+
+            private synchronized void begin(byte[] head, long length, boolean chunked) {
+                this.head = head;
+                // Unbounded for a streamed body, nothing for an empty one
+                this.remaining = length > 0 ? length : length == 0 ? Long.MAX_VALUE : 0;
+                this.chunked = chunked;
+                this.buffer = new byte[(int) Math.min(bufferBytes, remaining)];
+                this.started = true;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+                checkWritable();
+                if (length > remaining) {
+                    throw new IOException("Response body longer than its Content-Length");
+                }
+                remaining -= length;
+                while (length > 0) {
+                    if (count == buffer.length) {
+                        flush();
+                    }
+                    int copied = Math.min(length, buffer.length - count);
+                    System.arraycopy(bytes, offset, buffer, count, copied);
+                    count += copied;
+                    offset += copied;
+                    length -= copied;
+                }
+            }
+
+            @Override
+            public synchronized void flush() throws IOException {
+                checkWritable();
+                connection.awaitWriteRoom();
+                send(false);
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                if (closed || !started) {
+                    return;
+                }
+                closed = true;
+                if (connection.closed) {
+                    abort();
+                    return;
+                }
+                try {
+                    connection.awaitWriteRoom();
+                } catch (IOException e) {
+                    abort();
+                    throw e;
+                }
+                send(true);
+                // A short body leaves the client waiting for bytes that never come
+                finish(keepAlive && (remaining == 0 || remaining == Long.MAX_VALUE));
+            }
+
+            private void checkWritable() throws IOException {
+                if (!started) {
+                    throw new IOException("Response headers not sent");
+                }
+                if (closed) {
+                    throw new IOException("Response body closed");
+                }
+                if (connection.closed) {
+                    throw new IOException("Connection closed");
+                }
+            }
+
+            // Headers go out with the first body bytes so small responses are a single write
+            private void send(boolean last) {
+                int headLength = head != null ? head.length : 0;
+                if (count == 0 && headLength == 0 && !(last && chunked)) {
+                    return;
+                }
+                String size = chunked && count > 0 ? Integer.toHexString(count) + "\r\n" : "";
+                int framed = chunked && count > 0 ? size.length() + count + 2 : count;
+                ByteBuffer data = ByteBuffer.allocate(headLength + framed + (last && chunked ? LAST_CHUNK.length : 0));
+                if (head != null) {
+                    data.put(head);
+                    head = null;
+                }
+                if (count > 0) {
+                    data.put(size.getBytes(StandardCharsets.ISO_8859_1));
+                    data.put(buffer, 0, count);
+                    if (chunked) {
+                        data.put((byte) '\r').put((byte) '\n');
+                    }
+                    count = 0;
+                }
+                if (last && chunked) {
+                    data.put(LAST_CHUNK);
+                }
+                data.flip();
+                connection.send(data);
+            }
+        }
+    }
+
+    // Direct buffers handed out for reads and returned once a connection has no partial request,
+    // so idle connections hold none. Beyond maxPooled, returned buffers are left to the collector.
+    private static final class BufferPool {
+        private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int bufferBytes;
+        private final int maxPooled;
+
+        private BufferPool(int bufferBytes, int maxPooled) {
+            this.bufferBytes = bufferBytes;
+            this.maxPooled = Math.max(0, maxPooled);
+        }
+
+        private ByteBuffer acquire() {
+            ByteBuffer buffer = pooled.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(bufferBytes);
+            }
+            size.decrementAndGet();
+            return buffer;
+        }
+
+        private void release(ByteBuffer buffer) {
+            buffer.clear();
+            if (size.incrementAndGet() <= maxPooled) {
+                pooled.add(buffer);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+
+        private int size() {
+            return size.get();
+        }
+    }
+
+    // Position of the blank line ending the request head, or -1 if it has not arrived yet
+    private static int headerEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
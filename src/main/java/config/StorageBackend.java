@@ -0,0 +1,12 @@
+package config;
+
+public enum StorageBackend {
+    // Accounts, transactions and idempotency keys in MySQL
+    MYSQL,
+    // Everything in process memory and lost on exit; for profiling and load tests without a database
+    MEMORY;
+
+    public static StorageBackend fromConfig() {
+        return valueOf(AppConfig.getString("STORAGE_BACKEND", "MYSQL").toUpperCase());
+    }
+}
@@ -0,0 +1,22 @@
+package config;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public enum ThreadMode {
+    // Fixed pools of platform threads
+    PLATFORM,
+    // A new virtual thread for every task
+    VIRTUAL;
+
+    public static ThreadMode fromConfig() {
+        return valueOf(AppConfig.getString("THREAD_MODE", "PLATFORM").toUpperCase());
+    }
+
+    public ExecutorService newExecutor(String namePrefix, int platformThreads) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory());
+        }
+        return Executors.newFixedThreadPool(platformThreads, Thread.ofPlatform().name(namePrefix, 0).factory());
+    }
+}
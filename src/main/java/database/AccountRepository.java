@@ -0,0 +1,38 @@
+package database;
+
+import models.Money;
+import models.User;
+
+import java.util.Collection;
+import java.util.Map;
+
+// Storage for accounts and their balances
+public interface AccountRepository {
+
+    interface BalanceHandler {
+        void accept(String userId, Money balance) throws Exception;
+    }
+
+    interface AccountHandler {
+        void accept(String userId, String username) throws Exception;
+    }
+
+    void createUser(String userId, String username, Money balance) throws Exception;
+
+    boolean userExists(String userId) throws Exception;
+
+    User findByUserId(String userId) throws Exception;
+
+    // Accounts for the ids that exist, keyed by id, read in as few queries as the storage allows
+    Map<String, User> findByUserIds(Collection<String> userIds) throws Exception;
+
+    User findByUsername(String username) throws Exception;
+
+    // Streams every account's balance; returns how many were passed to handler
+    long forEachBalance(BalanceHandler handler) throws Exception;
+
+    // Streams every user id and username; returns how many were passed to handler
+    long forEachAccount(AccountHandler handler) throws Exception;
+
+    void updateBalance(String userId, Money newBalance) throws Exception;
+}
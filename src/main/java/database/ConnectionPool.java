@@ -0,0 +1,572 @@
+package database;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+// Fixed-bound JDBC connection pool. Callers lease a connection per operation and
+// return it with close(); the returned handle is a proxy that is invalidated on close.
+// Each pooled connection keeps its prepared statements in a bounded LRU cache keyed by SQL,
+// so closing a statement hands it back for the next caller instead of re-preparing it.
+public class ConnectionPool implements DataSource {
+
+    private static final long POLL_SLICE_MS = 100;
+    private static final long VALIDATION_BYPASS_MS = 500;
+    private static final long HOUSEKEEPING_INTERVAL_MS = 5000;
+
+    private final String url;
+    private final Properties connectionProperties;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final int validationTimeoutSeconds;
+    private final long leakThresholdMs;
+    private final int statementCacheSize;
+    // Fair admission gate; waiters park here in arrival order, which also suits virtual threads
+    private final Semaphore admission;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> leased = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final AtomicInteger pendingAcquires = new AtomicInteger();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final LongAdder statementCacheEvictions = new LongAdder();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String url, Properties connectionProperties, int minSize, int maxSize,
+                          long acquireTimeoutMs, int validationTimeoutSeconds, long leakThresholdMs) throws SQLException {
+        this(url, connectionProperties, minSize, maxSize, maxSize, acquireTimeoutMs, validationTimeoutSeconds, leakThresholdMs);
+    }
+
+    public ConnectionPool(String url, Properties connectionProperties, int minSize, int maxSize, int maxConcurrency,
+                          long acquireTimeoutMs, int validationTimeoutSeconds, long leakThresholdMs) throws SQLException {
+        this(url, connectionProperties, minSize, maxSize, maxConcurrency, acquireTimeoutMs, validationTimeoutSeconds,
+                leakThresholdMs, 0);
+    }
+
+    // statementCacheSize is the most idle prepared statements kept per connection; 0 disables the cache
+    public ConnectionPool(String url, Properties connectionProperties, int minSize, int maxSize, int maxConcurrency,
+                          long acquireTimeoutMs, int validationTimeoutSeconds, long leakThresholdMs,
+                          int statementCacheSize) throws SQLException {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.connectionProperties = new Properties();
+        this.connectionProperties.putAll(connectionProperties);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.leakThresholdMs = leakThresholdMs;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.admission = new Semaphore(Math.max(1, Math.min(maxConcurrency, maxSize)), true);
+
+        // Fail fast on bad credentials / unreachable server
+        for (int i = 0; i < minSize; i++) {
+            idle.offerLast(openConnection());
+        }
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep, HOUSEKEEPING_INTERVAL_MS,
+                HOUSEKEEPING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs);
+        pendingAcquires.incrementAndGet();
+        boolean admitted = false;
+        try {
+            if (!admission.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("Timed out after " + acquireTimeoutMs
+                        + "ms waiting for a database connection (active=" + leased.size()
+                        + ", max=" + maxSize + ")");
+            }
+            admitted = true;
+
+            while (true) {
+                PooledConnection pooled = idle.pollFirst();
+
+                if (pooled == null && reserveSlot()) {
+                    try {
+                        pooled = openConnection();
+                    } catch (SQLException e) {
+                        totalConnections.decrementAndGet();
+                        admission.release();
+                        throw e;
+                    }
+                }
+
+                if (pooled == null) {
+                    long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMs <= 0) {
+                        admission.release();
+                        throw new SQLTransientConnectionException("Timed out after " + acquireTimeoutMs
+                                + "ms waiting for a database connection (active=" + leased.size()
+                                + ", max=" + maxSize + ")");
+                    }
+                    // Wait in slices so a slot freed by a discarded connection is noticed
+                    pooled = idle.pollFirst(Math.min(remainingMs, POLL_SLICE_MS), TimeUnit.MILLISECONDS);
+                    if (pooled == null) {
+                        continue;
+                    }
+                }
+
+                if (isUsable(pooled)) {
+                    return lease(pooled);
+                }
+                discard(pooled);
+            }
+        } catch (InterruptedException e) {
+            if (admitted) {
+                admission.release();
+            }
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a database connection");
+        } finally {
+            pendingAcquires.decrementAndGet();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+        // Leased connections are closed as their holders return them
+        if (!leased.isEmpty()) {
+            System.err.println(leased.size() + " connection(s) still leased at pool shutdown");
+        }
+    }
+
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public int getActiveConnections() {
+        return leased.size();
+    }
+
+    public int getPendingAcquires() {
+        return pendingAcquires.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    public long getStatementCacheEvictions() {
+        return statementCacheEvictions.sum();
+    }
+
+    // Idle prepared statements held across all idle connections
+    public int getCachedStatements() {
+        int count = 0;
+        for (PooledConnection pooled : idle) {
+            count += pooled.statements.size();
+        }
+        return count;
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int current = totalConnections.get();
+            if (current >= maxSize) {
+                return false;
+            }
+            if (totalConnections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, connectionProperties);
+        return new PooledConnection(physical);
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        try {
+            if (pooled.physical.isClosed()) {
+                return false;
+            }
+            // Skip the round trip for connections that were in use moments ago
+            if (System.currentTimeMillis() - pooled.lastReturnedAt < VALIDATION_BYPASS_MS) {
+                return true;
+            }
+            return pooled.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection lease(PooledConnection pooled) {
+        pooled.leasedAt = System.currentTimeMillis();
+        pooled.leaseTrace = leakThresholdMs > 0 ? new Throwable("Connection leased here") : null;
+        pooled.leakReported = false;
+        leased.add(pooled);
+
+        return (Connection) Proxy.newProxyInstance(
+                ConnectionPool.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new LeaseHandler(pooled));
+    }
+
+    private void release(PooledConnection pooled) {
+        leased.remove(pooled);
+        pooled.leaseTrace = null;
+        admission.release();
+
+        try {
+            // Never hand out a connection with another caller's open transaction
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Discarding connection that failed to reset: " + e.getMessage());
+            discard(pooled);
+            return;
+        }
+
+        if (closed) {
+            discard(pooled);
+            return;
+        }
+        pooled.lastReturnedAt = System.currentTimeMillis();
+        idle.offerFirst(pooled);
+    }
+
+    private void discard(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        // Closing the connection closes its statements
+        pooled.statements.clear();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing pooled connection: " + e.getMessage());
+        }
+    }
+
+    private void housekeep() {
+        try {
+            long now = System.currentTimeMillis();
+            if (leakThresholdMs > 0) {
+                for (PooledConnection pooled : leased) {
+                    Throwable trace = pooled.leaseTrace;
+                    if (!pooled.leakReported && trace != null && now - pooled.leasedAt > leakThresholdMs) {
+                        pooled.leakReported = true;
+                        System.err.println("Possible connection leak: connection held for "
+                                + (now - pooled.leasedAt) + "ms");
+                        trace.printStackTrace();
+                    }
+                }
+            }
+
+            while (!closed && totalConnections.get() < minSize && reserveSlot()) {
+                try {
+                    idle.offerLast(openConnection());
+                } catch (SQLException e) {
+                    totalConnections.decrementAndGet();
+                    System.err.println("Error replenishing connection pool: " + e.getMessage());
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Error in connection pool housekeeping: " + e.getMessage());
+        }
+    }
+
+    private final class PooledConnection {
+        private final Connection physical;
+        private final StatementCache statements;
+        private volatile long leasedAt;
+        private volatile long lastReturnedAt;
+        private volatile Throwable leaseTrace;
+        private volatile boolean leakReported;
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new StatementCache(physical);
+            this.lastReturnedAt = System.currentTimeMillis();
+        }
+    }
+
+    // Prepared statements of one physical connection. Only the connection's current holder
+    // touches it, so it needs no locking. A statement is taken out of the cache while in use, so
+    // preparing the same SQL twice in one lease yields two independent statements.
+    private final class StatementCache {
+        private final Connection physical;
+        private final LinkedHashMap<String, PreparedStatement> idleStatements;
+        private final List<CachedStatementHandler> inUse = new ArrayList<>();
+
+        private StatementCache(Connection physical) {
+            this.physical = physical;
+            this.idleStatements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        statementCacheEvictions.increment();
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private PreparedStatement prepare(String sql, Connection owner) throws SQLException {
+            PreparedStatement statement = idleStatements.remove(sql);
+            if (statement != null && !statement.isClosed()) {
+                statementCacheHits.increment();
+            } else {
+                statementCacheMisses.increment();
+                statement = physical.prepareStatement(sql);
+            }
+
+            CachedStatementHandler handler = new CachedStatementHandler(this, sql, statement, owner);
+            inUse.add(handler);
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    handler);
+        }
+
+        // Resets the statement and keeps it for reuse; one that cannot be reset is closed
+        private void recycle(CachedStatementHandler handler) {
+            inUse.remove(handler);
+            PreparedStatement statement = handler.statement;
+            try {
+                if (statement.isClosed()) {
+                    return;
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+                statement.clearWarnings();
+            } catch (SQLException e) {
+                closeQuietly(statement);
+                return;
+            }
+            PreparedStatement previous = idleStatements.put(handler.sql, statement);
+            if (previous != null && previous != statement) {
+                closeQuietly(previous);
+            }
+        }
+
+        // Takes back statements the holder forgot to close, so they do not pile up on the connection
+        private void recycleInUse() {
+            for (CachedStatementHandler handler : new ArrayList<>(inUse)) {
+                handler.returnToCache();
+            }
+        }
+
+        private int size() {
+            return idleStatements.size();
+        }
+
+        private void clear() {
+            idleStatements.clear();
+            inUse.clear();
+        }
+
+        private void closeQuietly(PreparedStatement statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing cached statement: " + e.getMessage());
+            }
+        }
+    }
+
+    // Handle given out for a cached statement; close() hands the statement back to the cache
+    private static final class CachedStatementHandler implements InvocationHandler {
+        private final StatementCache cache;
+        private final String sql;
+        private final PreparedStatement statement;
+        private final Connection owner;
+        private boolean returned = false;
+
+        private CachedStatementHandler(StatementCache cache, String sql, PreparedStatement statement, Connection owner) {
+            this.cache = cache;
+            this.sql = sql;
+            this.statement = statement;
+            this.owner = owner;
+        }
+
+        private void returnToCache() {
+            if (!returned) {
+                returned = true;
+                cache.recycle(this);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    returnToCache();
+                    return null;
+                case "isClosed":
+                    return returned || statement.isClosed();
+                case "getConnection":
+                    return owner;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + sql + "]";
+                default:
+                    break;
+            }
+
+            if (returned) {
+                throw new SQLException("Statement has already been closed");
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private final class LeaseHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned = false;
+
+        private LeaseHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        pooled.statements.recycleInUse();
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pooled.physical + "]";
+                default:
+                    break;
+            }
+
+            if (returned) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            if (statementCacheSize > 0 && "prepareStatement".equals(method.getName())
+                    && args.length == 1 && args[0] instanceof String sql) {
+                return pooled.statements.prepare(sql, (Connection) proxy);
+            }
+            try {
+                return method.invoke(pooled.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    // DataSource plumbing
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pooled connections use the configured credentials");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return DriverManager.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        DriverManager.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
@@ -1,7 +1,14 @@
 package database;
 
+import config.AppConfig;
+
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 
 public class DBManager {
 
@@ -9,47 +16,209 @@ public class DBManager {
     private static final String DB_USER = System.getenv("DB_USER");
     private static final String DB_PASSWORD = System.getenv("DB_PASSWORD");
 
-    private static Connection connection = null;
+    private static final int POOL_MIN_SIZE = AppConfig.getInt("DB_POOL_MIN_SIZE", 2);
+    private static final int POOL_MAX_SIZE = AppConfig.getInt("DB_POOL_MAX_SIZE", 16);
+    private static final int MAX_CONCURRENCY = AppConfig.getInt("DB_MAX_CONCURRENCY", POOL_MAX_SIZE);
+    private static final long POOL_ACQUIRE_TIMEOUT_MS = AppConfig.getLong("DB_POOL_ACQUIRE_TIMEOUT_MS", 5000);
+    private static final int POOL_VALIDATION_TIMEOUT_SECONDS = AppConfig.getInt("DB_POOL_VALIDATION_TIMEOUT_SECONDS", 2);
+    private static final long POOL_LEAK_THRESHOLD_MS = AppConfig.getLong("DB_POOL_LEAK_THRESHOLD_MS", 30000);
+    private static final int STATEMENT_CACHE_SIZE = AppConfig.getInt("DB_STATEMENT_CACHE_SIZE", 64);
+    private static final boolean SERVER_PREPARED_STATEMENTS = AppConfig.getBoolean("DB_SERVER_PREPARED_STATEMENTS", true);
+    // Comma-separated JDBC URLs, one per shard; DB_URL alone is a single shard
+    private static final String SHARD_URLS = AppConfig.getString("DB_SHARD_URLS", null);
+    // Comma-separated ring ids, one per shard URL; defaults to shard-0, shard-1, ... by position
+    private static final String SHARD_NAMES = AppConfig.getString("DB_SHARD_NAMES", null);
+    private static final int SHARD_VIRTUAL_NODES = AppConfig.getInt("DB_SHARD_VIRTUAL_NODES", 128);
+
+    // The first shard's pool; it also holds the tables that are not sharded (idempotency keys)
+    private static volatile ConnectionPool pool = null;
+    private static volatile List<ConnectionPool> shardPools = List.of();
+    private static volatile ShardRouter router = null;
 
-    public static void initializeConnection() throws Exception {
-        if (connection != null && !connection.isClosed()) {
+    public static synchronized void initializeConnection() throws Exception {
+        if (pool != null) {
             return;
         }
+        List<ConnectionPool> pools = new ArrayList<>();
         try {
             // Load the JDBC driver
             Class.forName("com.mysql.cj.jdbc.Driver");
 
-            // Establish the connection
-            connection = java.sql.DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+            // Establish one connection pool per shard
+            List<String> urls = shardUrls();
+            for (String url : urls) {
+                ConnectionPool shardPool = new ConnectionPool(url, connectionProperties(), POOL_MIN_SIZE, POOL_MAX_SIZE,
+                        MAX_CONCURRENCY, POOL_ACQUIRE_TIMEOUT_MS, POOL_VALIDATION_TIMEOUT_SECONDS, POOL_LEAK_THRESHOLD_MS,
+                        STATEMENT_CACHE_SIZE);
+                pools.add(shardPool);
+                createTables(shardPool);
+            }
 
-            createTables();
-            System.out.println("Database connection established");
+            router = new ShardRouter(shardNames(urls.size()), SHARD_VIRTUAL_NODES);
+            shardPools = List.copyOf(pools);
+            pool = pools.get(0);
+            System.out.println("Database connection pool established (min=" + POOL_MIN_SIZE + ", max=" + POOL_MAX_SIZE
+                    + (urls.size() > 1 ? ", shards=" + urls.size() : "") + ")");
 
         } catch (Exception e) {
+            for (ConnectionPool opened : pools) {
+                opened.close();
+            }
             System.err.println("Error establishing database connection: " + e.getMessage());
         }
     }
 
-    public static Connection getConnection() throws Exception{
-        if (connection == null || connection.isClosed()) {
+    // Leases a connection to the first shard, for tables that are not sharded; callers must close it
+    public static Connection getConnection() throws Exception {
+        ConnectionPool current = pool;
+        if (current == null) {
+            throw new Exception("Database connection is not initialized or closed.");
+        }
+        return current.getConnection();
+    }
+
+    // Leases a connection to the shard holding the account and its transactions
+    public static Connection getConnection(String accountId) throws Exception {
+        return getShardConnection(shardFor(accountId));
+    }
+
+    public static Connection getShardConnection(int shard) throws Exception {
+        List<ConnectionPool> pools = shardPools;
+        if (pools.isEmpty()) {
+            throw new Exception("Database connection is not initialized or closed.");
+        }
+        return pools.get(shard).getConnection();
+    }
+
+    public static int shardFor(String accountId) throws Exception {
+        ShardRouter current = router;
+        if (current == null) {
             throw new Exception("Database connection is not initialized or closed.");
         }
-        return connection;
+        return current.shardFor(accountId);
+    }
+
+    public static int getShardCount() {
+        return shardPools.size();
+    }
+
+    public static List<ConnectionPool> getShardDataSources() {
+        return shardPools;
+    }
+
+    private static List<String> shardUrls() {
+        List<String> urls = new ArrayList<>();
+        if (SHARD_URLS != null) {
+            for (String url : SHARD_URLS.split(",")) {
+                if (!url.isBlank()) {
+                    urls.add(url.trim());
+                }
+            }
+        }
+        if (urls.isEmpty()) {
+            urls.add(DB_URL);
+        }
+        return urls;
+    }
+
+    // The ring is keyed by these ids, so a shard keeps its accounts when its URL changes
+    private static List<String> shardNames(int shardCount) throws Exception {
+        List<String> names = new ArrayList<>();
+        if (SHARD_NAMES != null) {
+            for (String name : SHARD_NAMES.split(",")) {
+                if (!name.isBlank()) {
+                    names.add(name.trim());
+                }
+            }
+            if (names.size() != shardCount) {
+                throw new Exception("DB_SHARD_NAMES has " + names.size() + " names for " + shardCount + " shards");
+            }
+            return names;
+        }
+        for (int shard = 0; shard < shardCount; shard++) {
+            names.add("shard-" + shard);
+        }
+        return names;
+    }
+
+    private static Properties connectionProperties() {
+        Properties properties = new Properties();
+        if (DB_USER != null) {
+            properties.setProperty("user", DB_USER);
+        }
+        if (DB_PASSWORD != null) {
+            properties.setProperty("password", DB_PASSWORD);
+        }
+        // Let the driver collapse JDBC batches into multi-row INSERTs
+        properties.setProperty("rewriteBatchedStatements", "true");
+        // Ledger postings send their UPDATE, INSERT and read-back in a single round trip
+        properties.setProperty("allowMultiQueries", "true");
+        // Parse each statement once on the server; the pool caches the handles, so the driver's own
+        // statement cache stays off. Multi-statement SQL is still prepared client-side by the driver.
+        if (SERVER_PREPARED_STATEMENTS) {
+            properties.setProperty("useServerPrepStmts", "true");
+        }
+        return properties;
+    }
+
+    private static void addIndexIfMissing(Connection connection, String table, String index, String columns) throws Exception {
+        String query = "SELECT COUNT(*) FROM information_schema.statistics"
+                + " WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?";
+        try (PreparedStatement ps = connection.prepareStatement(query)) {
+            ps.setString(1, table);
+            ps.setString(2, index);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next() && rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+        }
+        try (Statement st = connection.createStatement()) {
+            System.out.println("Adding index " + index + " to " + table);
+            st.executeUpdate("ALTER TABLE " + table + " ADD INDEX " + index + " " + columns);
+        }
+    }
+
+    private static void addColumnIfMissing(Connection connection, String table, String column, String definition) throws Exception {
+        String query = "SELECT COUNT(*) FROM information_schema.columns"
+                + " WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?";
+        try (PreparedStatement ps = connection.prepareStatement(query)) {
+            ps.setString(1, table);
+            ps.setString(2, column);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next() && rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+        }
+        try (Statement st = connection.createStatement()) {
+            System.out.println("Adding column " + column + " to " + table);
+            st.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+
+    public static ConnectionPool getDataSource() {
+        return pool;
     }
 
-    public static void closeConnection() throws Exception {
-        if (connection != null && !connection.isClosed())
+    public static synchronized void closeConnection() throws Exception {
+        if (pool != null)
             try {
-                connection.close();
-                System.out.println("Database connection closed");
+                for (ConnectionPool shardPool : shardPools) {
+                    shardPool.close();
+                }
+                pool = null;
+                shardPools = List.of();
+                router = null;
+                System.out.println("Database connection pool closed");
             } catch (Exception e) {
                 System.err.println("Error closing database connection: " + e.getMessage());
             }
     }
 
-    private static void createTables() {
-        try {
-            Statement st = connection.createStatement();
+    private static void createTables(ConnectionPool pool) {
+        try (Connection connection = pool.getConnection();
+             Statement st = connection.createStatement()) {
 
             st.executeUpdate("""
                 CREATE TABLE IF NOT EXISTS users (
@@ -74,7 +243,32 @@ public class DBManager {
                     failure_reason TEXT,
                     creation_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
                     processed_time TIMESTAMP NULL,
-                    FOREIGN KEY (account_id) REFERENCES users(user_id)
+                    attempts INT NOT NULL DEFAULT 1,
+                    FOREIGN KEY (account_id) REFERENCES users(user_id),
+                    INDEX idx_transactions_account_time (account_id, creation_time, transaction_id)
+                )
+            """);
+            // Tables created before the history index existed get it added once
+            addIndexIfMissing(connection, "transactions", "idx_transactions_account_time",
+                    "(account_id, creation_time, transaction_id)");
+            addColumnIfMissing(connection, "transactions", "attempts", "INT NOT NULL DEFAULT 1");
+
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS idempotency_keys (
+                    idempotency_key VARCHAR(255) PRIMARY KEY,
+                    transaction_id VARCHAR(36) NOT NULL,
+                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                    expires_at TIMESTAMP NOT NULL,
+                    INDEX idx_idempotency_keys_expires_at (expires_at)
+                )
+            """);
+
+            // Only shard 0's copy is used: it keeps usernames unique across shards
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS usernames (
+                    username VARCHAR(50) PRIMARY KEY,
+                    user_id VARCHAR(36) NOT NULL,
+                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
                 )
             """);
 
@@ -0,0 +1,158 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class IdempotencyDataAccess implements IdempotencyRepository {
+    // Most keys bound to one IN list
+    private static final int MAX_KEYS_PER_QUERY = 500;
+
+    // Records the key for this transaction, or returns the transaction already recorded for it.
+    // Expired keys are taken over by the new transaction.
+    @Override
+    public String reserve(String idempotencyKey, String transactionId, Instant expiresAt) throws Exception {
+        String insertQuery = "INSERT INTO idempotency_keys (idempotency_key, transaction_id, created_at, expires_at) VALUES (?, ?, ?, ?)";
+        String selectQuery = "SELECT transaction_id FROM idempotency_keys WHERE idempotency_key = ? AND expires_at > ?";
+        String takeOverQuery = "UPDATE idempotency_keys SET transaction_id = ?, created_at = ?, expires_at = ? WHERE idempotency_key = ? AND expires_at <= ?";
+
+        try (Connection connection = DBManager.getConnection();
+             PreparedStatement insert = connection.prepareStatement(insertQuery);
+             PreparedStatement select = connection.prepareStatement(selectQuery);
+             PreparedStatement takeOver = connection.prepareStatement(takeOverQuery)) {
+
+            Timestamp now = Timestamp.from(Instant.now());
+            Timestamp expiry = Timestamp.from(expiresAt);
+
+            try {
+                insert.setString(1, idempotencyKey);
+                insert.setString(2, transactionId);
+                insert.setTimestamp(3, now);
+                insert.setTimestamp(4, expiry);
+                insert.executeUpdate();
+                return null;
+            } catch (SQLIntegrityConstraintViolationException duplicate) {
+                // Key already recorded; fall through to look it up
+            }
+
+            // A concurrent take-over can race us, so re-check until one side wins
+            for (int attempt = 0; attempt < 3; attempt++) {
+                select.setString(1, idempotencyKey);
+                select.setTimestamp(2, now);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getString("transaction_id");
+                    }
+                }
+
+                takeOver.setString(1, transactionId);
+                takeOver.setTimestamp(2, now);
+                takeOver.setTimestamp(3, expiry);
+                takeOver.setString(4, idempotencyKey);
+                takeOver.setTimestamp(5, now);
+                if (takeOver.executeUpdate() == 1) {
+                    return null;
+                }
+            }
+            throw new Exception("Could not reserve idempotency key: " + idempotencyKey);
+        }
+        catch (Exception e) {
+            throw new Exception("Error reserving idempotency key: " + e.getMessage(), e);
+        }
+    }
+
+    // One multi-row insert that takes over expired keys and leaves live ones alone, then one select
+    // per chunk of keys to see which transaction each key is recorded for
+    @Override
+    public Map<String, String> reserveAll(Map<String, String> transactionIds, Instant expiresAt) throws Exception {
+        // Columns are assigned left to right, so expires_at is tested before it is overwritten
+        String insertQuery = "INSERT INTO idempotency_keys (idempotency_key, transaction_id, created_at, expires_at) VALUES (?, ?, ?, ?) "
+                + "ON DUPLICATE KEY UPDATE "
+                + "transaction_id = IF(expires_at <= VALUES(created_at), VALUES(transaction_id), transaction_id), "
+                + "created_at = IF(expires_at <= VALUES(created_at), VALUES(created_at), created_at), "
+                + "expires_at = IF(expires_at <= VALUES(created_at), VALUES(expires_at), expires_at)";
+
+        try (Connection connection = DBManager.getConnection();
+             PreparedStatement insert = connection.prepareStatement(insertQuery)) {
+
+            Timestamp now = Timestamp.from(Instant.now());
+            Timestamp expiry = Timestamp.from(expiresAt);
+            for (Map.Entry<String, String> key : transactionIds.entrySet()) {
+                insert.setString(1, key.getKey());
+                insert.setString(2, key.getValue());
+                insert.setTimestamp(3, now);
+                insert.setTimestamp(4, expiry);
+                insert.addBatch();
+            }
+            // Sent as one multi-row statement, since the pool enables rewriteBatchedStatements
+            insert.executeBatch();
+
+            Map<String, String> recorded = new HashMap<>();
+            List<String> keys = new ArrayList<>(transactionIds.keySet());
+            for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_QUERY) {
+                List<String> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_KEYS_PER_QUERY));
+                String selectQuery = "SELECT idempotency_key, transaction_id FROM idempotency_keys WHERE idempotency_key IN ("
+                        + "?, ".repeat(chunk.size() - 1) + "?)";
+                try (PreparedStatement select = connection.prepareStatement(selectQuery)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        select.setString(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            String key = rs.getString("idempotency_key");
+                            String transactionId = rs.getString("transaction_id");
+                            if (!transactionId.equals(transactionIds.get(key))) {
+                                recorded.put(key, transactionId);
+                            }
+                        }
+                    }
+                }
+            }
+            return recorded;
+        }
+        catch (Exception e) {
+            throw new Exception("Error reserving idempotency keys: " + e.getMessage(), e);
+        }
+    }
+
+    // Drops a reservation whose request was never accepted
+    @Override
+    public void release(String idempotencyKey, String transactionId) throws Exception {
+        String query = "DELETE FROM idempotency_keys WHERE idempotency_key = ? AND transaction_id = ?";
+
+        try (Connection connection = DBManager.getConnection();
+             PreparedStatement ps = connection.prepareStatement(query)) {
+
+            ps.setString(1, idempotencyKey);
+            ps.setString(2, transactionId);
+            ps.executeUpdate();
+        }
+        catch (Exception e) {
+            throw new Exception("Error releasing idempotency key: " + e.getMessage(), e);
+        }
+    }
+
+    // Deletes up to limit expired keys, returning how many were removed
+    @Override
+    public int deleteExpired(Instant now, int limit) throws Exception {
+        String query = "DELETE FROM idempotency_keys WHERE expires_at <= ? LIMIT ?";
+
+        try (Connection connection = DBManager.getConnection();
+             PreparedStatement ps = connection.prepareStatement(query)) {
+
+            ps.setTimestamp(1, Timestamp.from(now));
+            ps.setInt(2, limit);
+            return ps.executeUpdate();
+        }
+        catch (Exception e) {
+            throw new Exception("Error purging idempotency keys: " + e.getMessage(), e);
+        }
+    }
+}
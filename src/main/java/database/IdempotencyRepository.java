@@ -0,0 +1,22 @@
+package database;
+
+import java.time.Instant;
+import java.util.Map;
+
+// Durable record of idempotency keys
+public interface IdempotencyRepository {
+
+    // Records the key for this transaction, or returns the transaction already recorded for it.
+    // Expired keys are taken over by the new transaction.
+    String reserve(String idempotencyKey, String transactionId, Instant expiresAt) throws Exception;
+
+    // reserve for several keys at once: transactionIds maps each key to its new transaction. Returns
+    // the keys already recorded for another transaction, with that transaction's id.
+    Map<String, String> reserveAll(Map<String, String> transactionIds, Instant expiresAt) throws Exception;
+
+    // Drops a reservation whose request was never accepted
+    void release(String idempotencyKey, String transactionId) throws Exception;
+
+    // Deletes up to limit expired keys, returning how many were removed
+    int deleteExpired(Instant now, int limit) throws Exception;
+}
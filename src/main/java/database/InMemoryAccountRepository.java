@@ -0,0 +1,123 @@
+package database;
+
+import models.Money;
+import models.Transaction;
+import models.User;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Accounts held in concurrent maps. Each account is an immutable snapshot replaced atomically, so
+// readers never see a half-applied change and get copies they are free to modify.
+public class InMemoryAccountRepository implements AccountRepository {
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Map<String, String> usernames = new ConcurrentHashMap<>();
+
+    @Override
+    public void createUser(String userId, String username, Money balance) throws Exception {
+        if (usernames.putIfAbsent(username, userId) != null) {
+            throw new Exception("Error creating user: Duplicate username " + username);
+        }
+        Instant now = Instant.now();
+        User user = new User(userId, username, balance, balance.getCurrency(), now, now);
+        if (users.putIfAbsent(userId, user) != null) {
+            usernames.remove(username, userId);
+            throw new Exception("Error creating user: Duplicate user id " + userId);
+        }
+    }
+
+    @Override
+    public boolean userExists(String userId) {
+        return users.containsKey(userId);
+    }
+
+    @Override
+    public User findByUserId(String userId) {
+        return copy(users.get(userId));
+    }
+
+    @Override
+    public Map<String, User> findByUserIds(Collection<String> userIds) {
+        Map<String, User> found = new HashMap<>();
+        for (String userId : userIds) {
+            User user = users.get(userId);
+            if (user != null) {
+                found.put(userId, copy(user));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public User findByUsername(String username) {
+        String userId = usernames.get(username);
+        return userId == null ? null : copy(users.get(userId));
+    }
+
+    @Override
+    public long forEachBalance(BalanceHandler handler) throws Exception {
+        long count = 0;
+        for (User user : users.values()) {
+            handler.accept(user.getUserId(), user.getBalance());
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long forEachAccount(AccountHandler handler) throws Exception {
+        long count = 0;
+        for (User user : users.values()) {
+            handler.accept(user.getUserId(), user.getUsername());
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void updateBalance(String userId, Money newBalance) throws Exception {
+        User updated = users.computeIfPresent(userId, (id, user) -> withBalance(user, newBalance, Instant.now()));
+        if (updated == null) {
+            throw new Exception("User not found with ID: " + userId);
+        }
+    }
+
+    // Applies the transaction's amount to its account. A posting is checked for funds and gets its
+    // prev/new balances set; a record was already checked and carries them. Returns false, changing
+    // nothing, when the account is missing or a posting would take the balance negative.
+    boolean apply(Transaction transaction, boolean posting) {
+        boolean[] applied = new boolean[1];
+        users.computeIfPresent(transaction.getAccountId(), (id, user) -> {
+            Money balance = user.getBalance();
+            Money amount = transaction.getAmount();
+            Money newBalance = transaction.getType() == Transaction.TransactionType.DEPOSIT ?
+                    balance.add(amount) : balance.subtract(amount);
+            if (posting) {
+                if (newBalance.isNegative()) {
+                    return user;
+                }
+                transaction.setPrevBalance(balance);
+                transaction.setNewBalance(newBalance);
+            }
+            applied[0] = true;
+            Instant processed = transaction.getProcessedTime() != null ? transaction.getProcessedTime() : Instant.now();
+            return withBalance(user, newBalance, processed);
+        });
+        return applied[0];
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    private static User withBalance(User user, Money balance, Instant updatedAt) {
+        return new User(user.getUserId(), user.getUsername(), balance, user.getCurrency(), user.getCreatedAt(), updatedAt);
+    }
+
+    private static User copy(User user) {
+        return user == null ? null : withBalance(user, user.getBalance(), user.getUpdatedAt());
+    }
+}
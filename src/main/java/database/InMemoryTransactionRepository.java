@@ -0,0 +1,157 @@
+package database;
+
+import config.AppConfig;
+import models.Transaction;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Transactions held in memory. Writes are applied on the calling thread and complete immediately;
+// each account's history is a skip list in the same newest-first order as the MySQL index, so
+// keyset pages work the same way. Only the most recent MEMORY_STORE_RETAINED_TRANSACTIONS are kept.
+public class InMemoryTransactionRepository implements TransactionRepository {
+    private static final Comparator<HistoryKey> NEWEST_FIRST = Comparator
+            .comparing((HistoryKey key) -> key.creationTime).reversed()
+            .thenComparing(key -> key.transactionId, Comparator.reverseOrder());
+
+    private final InMemoryAccountRepository accounts;
+    private final Map<String, Transaction> byId = new ConcurrentHashMap<>();
+    private final Map<String, NavigableMap<HistoryKey, Transaction>> byAccount = new ConcurrentHashMap<>();
+    // Insertion order, for dropping the oldest transactions once over the bound
+    private final Queue<Transaction> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final int retained;
+
+    public InMemoryTransactionRepository(InMemoryAccountRepository accounts) {
+        this(accounts, AppConfig.getInt("MEMORY_STORE_RETAINED_TRANSACTIONS", 1_000_000));
+    }
+
+    public InMemoryTransactionRepository(InMemoryAccountRepository accounts, int retained) {
+        this.accounts = accounts;
+        this.retained = Math.max(1, retained);
+    }
+
+    @Override
+    public Transaction findById(String transactionId) {
+        return byId.get(transactionId);
+    }
+
+    @Override
+    public Transaction findById(String transactionId, String accountId) {
+        return byId.get(transactionId);
+    }
+
+    @Override
+    public void findByAccount(String accountId, Instant afterTime, String afterId, int limit,
+                              RowHandler handler) throws Exception {
+        NavigableMap<HistoryKey, Transaction> history = byAccount.get(accountId);
+        if (history == null) {
+            return;
+        }
+        if (afterTime != null) {
+            history = history.tailMap(new HistoryKey(afterTime, afterId == null ? "" : afterId), false);
+        }
+        int count = 0;
+        for (Transaction transaction : history.values()) {
+            if (count++ >= limit) {
+                break;
+            }
+            handler.accept(transaction);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitPosting(Transaction transaction) {
+        return store(transaction, true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitRecord(Transaction transaction) {
+        return store(transaction, false);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitFailed(Transaction transaction) {
+        if (byId.putIfAbsent(transaction.getTransactionId(), transaction) != null) {
+            return CompletableFuture.failedFuture(
+                    new Exception("Duplicate transaction id: " + transaction.getTransactionId()));
+        }
+        index(transaction);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    // Postings here never fail transiently, so no account is ever held back
+    @Override
+    public void releaseAccount(Transaction transaction) {
+    }
+
+    @Override
+    public int getPendingWrites() {
+        return 0;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    private CompletableFuture<Boolean> store(Transaction transaction, boolean posting) {
+        // Matches the primary key on transaction_id. The id is claimed before the balance changes, so
+        // two concurrent stores of one id cannot both apply it.
+        if (byId.putIfAbsent(transaction.getTransactionId(), transaction) != null) {
+            return CompletableFuture.failedFuture(
+                    new Exception("Duplicate transaction id: " + transaction.getTransactionId()));
+        }
+        if (!accounts.apply(transaction, posting)) {
+            byId.remove(transaction.getTransactionId(), transaction);
+            if (posting) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return CompletableFuture.failedFuture(new Exception("User not found"));
+        }
+
+        index(transaction);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    // The transaction is already claimed in byId
+    private void index(Transaction transaction) {
+        byAccount.computeIfAbsent(transaction.getAccountId(), id -> new ConcurrentSkipListMap<>(NEWEST_FIRST))
+                .put(new HistoryKey(transaction.getCreationTime(), transaction.getTransactionId()), transaction);
+        insertionOrder.add(transaction);
+        evict();
+    }
+
+    private void evict() {
+        while (byId.size() > retained) {
+            Transaction oldest = insertionOrder.poll();
+            if (oldest == null) {
+                return;
+            }
+            byId.remove(oldest.getTransactionId(), oldest);
+            NavigableMap<HistoryKey, Transaction> history = byAccount.get(oldest.getAccountId());
+            if (history != null) {
+                history.remove(new HistoryKey(oldest.getCreationTime(), oldest.getTransactionId()));
+            }
+        }
+    }
+
+    private static final class HistoryKey {
+        private final Instant creationTime;
+        private final String transactionId;
+
+        private HistoryKey(Instant creationTime, String transactionId) {
+            this.creationTime = creationTime;
+            this.transactionId = transactionId;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package database;
+
+import models.Money;
+import models.Transaction;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.List;
+
+public class LedgerDataAccess {
+
+    // Conditional balance change, transaction row and result read-back sent as one round trip.
+    // The row is only inserted when the UPDATE matched, and prev/new balances are taken from the
+    // row-locked account inside the same DB transaction, so there is no read-then-write window.
+    private static final String POST_QUERY = """
+            UPDATE users SET balance = balance + ?, updated_at = ?
+                WHERE user_id = ? AND balance + ? >= 0;
+            INSERT INTO transactions (
+                transaction_id, account_id, amount, type, status,
+                prev_balance, new_balance, failure_reason,
+                creation_time, processed_time, attempts
+            )
+                SELECT ?, user_id, ?, ?, ?, balance - ?, balance, NULL, ?, ?, ?
+                FROM users WHERE user_id = ? AND ROW_COUNT() = 1;
+            SELECT prev_balance, new_balance FROM transactions WHERE transaction_id = ?
+        """;
+
+    private static final String LOCK_BALANCE_QUERY = "SELECT balance FROM users WHERE user_id = ? FOR UPDATE";
+
+    private static final String APPLY_DELTA_QUERY =
+            "UPDATE users SET balance = balance + ?, updated_at = ? WHERE user_id = ?";
+
+    // Posts the transaction on the caller's connection; the caller owns the commit.
+    // Returns false without changing anything when the account is missing or a withdrawal
+    // would overdraw it.
+    public boolean post(Connection connection, Transaction transaction) throws Exception {
+        Money amount = transaction.getAmount();
+        BigDecimal delta = (transaction.getType() == Transaction.TransactionType.DEPOSIT ? amount : amount.negate()).toDecimal();
+        Timestamp processedTime = Timestamp.from(transaction.getProcessedTime());
+
+        try (PreparedStatement ps = connection.prepareStatement(POST_QUERY)) {
+            ps.setBigDecimal(1, delta);
+            ps.setTimestamp(2, processedTime);
+            ps.setString(3, transaction.getAccountId());
+            ps.setBigDecimal(4, delta);
+
+            ps.setString(5, transaction.getTransactionId());
+            ps.setBigDecimal(6, amount.toDecimal());
+            ps.setString(7, transaction.getType().name());
+            ps.setString(8, transaction.getStatus().name());
+            ps.setBigDecimal(9, delta);
+            ps.setTimestamp(10, transaction.getCreationTime() != null ?
+                    Timestamp.from(transaction.getCreationTime()) : null);
+            ps.setTimestamp(11, processedTime);
+            ps.setInt(12, Math.max(1, transaction.getAttempts()));
+            ps.setString(13, transaction.getAccountId());
+
+            ps.setString(14, transaction.getTransactionId());
+
+            // Skip the UPDATE and INSERT counts to reach the read-back result
+            boolean isResultSet = ps.execute();
+            while (!isResultSet && ps.getUpdateCount() != -1) {
+                isResultSet = ps.getMoreResults();
+            }
+            if (!isResultSet) {
+                throw new Exception("Posting returned no result for transaction: " + transaction.getTransactionId());
+            }
+
+            try (ResultSet rs = ps.getResultSet()) {
+                if (!rs.next()) {
+                    return false;
+                }
+                transaction.setPrevBalance(Money.fromDecimal(rs.getBigDecimal("prev_balance"), amount.getCurrency()));
+                transaction.setNewBalance(Money.fromDecimal(rs.getBigDecimal("new_balance"), amount.getCurrency()));
+                return true;
+            }
+        }
+        catch (Exception e) {
+            throw new Exception("Error posting transaction: " + e.getMessage(), e);
+        }
+    }
+
+    // Posts several transactions of one account with a single row lock and a single balance update.
+    // Withdrawals are checked in order against the running balance; accepted transactions get their
+    // prev/new balances set and must then be inserted on the same connection by the caller, who
+    // owns the commit. Returns whether each one was accepted.
+    public boolean[] postNetted(Connection connection, String accountId, List<Transaction> transactions) throws Exception {
+        boolean[] accepted = new boolean[transactions.size()];
+        try {
+            Money balance;
+            try (PreparedStatement ps = connection.prepareStatement(LOCK_BALANCE_QUERY)) {
+                ps.setString(1, accountId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        return accepted;
+                    }
+                    balance = Money.fromDecimal(rs.getBigDecimal("balance"), transactions.get(0).getAmount().getCurrency());
+                }
+            }
+
+            Money opening = balance;
+            Timestamp lastProcessed = null;
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction transaction = transactions.get(i);
+                Money newBalance = transaction.getType() == Transaction.TransactionType.DEPOSIT ?
+                        balance.add(transaction.getAmount()) : balance.subtract(transaction.getAmount());
+                if (newBalance.isNegative()) {
+                    continue;
+                }
+                transaction.setPrevBalance(balance);
+                transaction.setNewBalance(newBalance);
+                balance = newBalance;
+                lastProcessed = Timestamp.from(transaction.getProcessedTime());
+                accepted[i] = true;
+            }
+
+            if (lastProcessed != null) {
+                try (PreparedStatement ps = connection.prepareStatement(APPLY_DELTA_QUERY)) {
+                    ps.setBigDecimal(1, balance.subtract(opening).toDecimal());
+                    ps.setTimestamp(2, lastProcessed);
+                    ps.setString(3, accountId);
+                    ps.executeUpdate();
+                }
+            }
+            return accepted;
+        }
+        catch (Exception e) {
+            throw new Exception("Error posting netted transactions: " + e.getMessage(), e);
+        }
+    }
+
+    // Applies balance changes that were already checked elsewhere, as one JDBC batch on the caller's
+    // connection; the caller owns the commit. Changes are relative, so they can be applied in any order.
+    public void applyBalanceChanges(Connection connection, List<Transaction> transactions) throws Exception {
+        try (PreparedStatement ps = connection.prepareStatement(APPLY_DELTA_QUERY)) {
+            for (Transaction transaction : transactions) {
+                Money amount = transaction.getAmount();
+                ps.setBigDecimal(1, (transaction.getType() == Transaction.TransactionType.DEPOSIT ? amount : amount.negate()).toDecimal());
+                ps.setTimestamp(2, Timestamp.from(transaction.getProcessedTime()));
+                ps.setString(3, transaction.getAccountId());
+                ps.addBatch();
+            }
+
+            int[] results = ps.executeBatch();
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == 0) {
+                    throw new Exception("User not found with ID: " + transactions.get(i).getAccountId());
+                }
+            }
+        }
+        catch (Exception e) {
+            throw new Exception("Error applying balance changes: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package database;
+
+import models.Transaction;
+
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+// Transactions in MySQL: reads go straight to the tables, writes through the group-commit writer
+public class MySqlTransactionRepository implements TransactionRepository {
+    private final TransactionDataAccess transactionDA;
+    private final TransactionBatchWriter transactionWriter;
+
+    public MySqlTransactionRepository() {
+        this.transactionDA = new TransactionDataAccess();
+        this.transactionWriter = new TransactionBatchWriter(transactionDA, new LedgerDataAccess());
+    }
+
+    @Override
+    public Transaction findById(String transactionId) throws Exception {
+        return transactionDA.findById(transactionId);
+    }
+
+    @Override
+    public Transaction findById(String transactionId, String accountId) throws Exception {
+        return transactionDA.findById(transactionId, accountId);
+    }
+
+    @Override
+    public void findByAccount(String accountId, Instant afterTime, String afterId, int limit,
+                              RowHandler handler) throws Exception {
+        transactionDA.findByAccount(accountId, afterTime, afterId, limit, handler);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitPosting(Transaction transaction) {
+        return transactionWriter.submitPosting(transaction);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitRecord(Transaction transaction) {
+        return transactionWriter.submitRecord(transaction);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitFailed(Transaction transaction) {
+        return transactionWriter.submit(transaction);
+    }
+
+    @Override
+    public void releaseAccount(Transaction transaction) {
+        transactionWriter.release(transaction);
+    }
+
+    @Override
+    public int getPendingWrites() {
+        return transactionWriter.getPendingCount();
+    }
+
+    @Override
+    public void shutdown() {
+        transactionWriter.shutdown();
+    }
+}
@@ -0,0 +1,147 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.List;
+
+// Offline tool that moves every account, with its transactions, to the shard the current
+// DB_SHARD_URLS / DB_SHARD_NAMES ring assigns it. Run it with the server stopped after adding shards:
+//
+//   java -cp <app classpath> database.ShardRebalancer [--dry-run]
+//
+// Each account is copied to its new shard and committed before it is deleted from the old one, and
+// the copy ignores rows that are already there, so an interrupted run can simply be started again.
+public class ShardRebalancer {
+    private static final int COPY_BATCH_SIZE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        boolean dryRun = args.length > 0 && "--dry-run".equals(args[0]);
+
+        DBManager.initializeConnection();
+        if (DBManager.getShardCount() == 0) {
+            System.err.println("Database is not reachable; set DB_SHARD_URLS (or DB_URL), DB_USER and DB_PASSWORD");
+            System.exit(1);
+        }
+
+        try {
+            long moved = new ShardRebalancer().rebalance(dryRun);
+            System.out.println((dryRun ? "Would move " : "Moved ") + moved + " accounts across "
+                    + DBManager.getShardCount() + " shards");
+        } finally {
+            DBManager.closeConnection();
+        }
+    }
+
+    public long rebalance(boolean dryRun) throws Exception {
+        long moved = 0;
+        for (int shard = 0; shard < DBManager.getShardCount(); shard++) {
+            List<String> misplaced = findMisplaced(shard);
+            System.out.println("Shard " + shard + ": " + misplaced.size() + " accounts to move");
+            if (dryRun) {
+                moved += misplaced.size();
+                continue;
+            }
+            for (String accountId : misplaced) {
+                moveAccount(accountId, shard, DBManager.shardFor(accountId));
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private List<String> findMisplaced(int shard) throws Exception {
+        List<String> misplaced = new ArrayList<>();
+        try (Connection connection = DBManager.getShardConnection(shard);
+             PreparedStatement ps = connection.prepareStatement("SELECT user_id FROM users",
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+            ps.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String accountId = rs.getString(1);
+                    if (DBManager.shardFor(accountId) != shard) {
+                        misplaced.add(accountId);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            throw new Exception("Error scanning shard " + shard + ": " + e.getMessage(), e);
+        }
+        return misplaced;
+    }
+
+    private void moveAccount(String accountId, int from, int to) throws Exception {
+        try (Connection source = DBManager.getShardConnection(from);
+             Connection target = DBManager.getShardConnection(to)) {
+
+            target.setAutoCommit(false);
+            try {
+                // The user row first, since transactions reference it
+                copyRows(source, target, "users", "user_id", accountId);
+                copyRows(source, target, "transactions", "account_id", accountId);
+                target.commit();
+            }
+            catch (Exception e) {
+                target.rollback();
+                throw e;
+            }
+
+            source.setAutoCommit(false);
+            try (PreparedStatement deleteTransactions = source.prepareStatement("DELETE FROM transactions WHERE account_id = ?");
+                 PreparedStatement deleteUser = source.prepareStatement("DELETE FROM users WHERE user_id = ?")) {
+                deleteTransactions.setString(1, accountId);
+                deleteTransactions.executeUpdate();
+                deleteUser.setString(1, accountId);
+                deleteUser.executeUpdate();
+                source.commit();
+            }
+            catch (Exception e) {
+                source.rollback();
+                throw e;
+            }
+        }
+        catch (Exception e) {
+            throw new Exception("Error moving account " + accountId + " from shard " + from + " to " + to + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Copies every row of table matching column = value, column for column
+    private void copyRows(Connection source, Connection target, String table, String column, String value) throws Exception {
+        try (PreparedStatement select = source.prepareStatement("SELECT * FROM " + table + " WHERE " + column + " = ?",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            select.setString(1, value);
+            try (ResultSet rs = select.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int columns = meta.getColumnCount();
+                StringBuilder names = new StringBuilder();
+                StringBuilder placeholders = new StringBuilder();
+                for (int i = 1; i <= columns; i++) {
+                    names.append(i > 1 ? ", " : "").append(meta.getColumnName(i));
+                    placeholders.append(i > 1 ? ", ?" : "?");
+                }
+
+                String insertQuery = "INSERT IGNORE INTO " + table + " (" + names + ") VALUES (" + placeholders + ")";
+                try (PreparedStatement insert = target.prepareStatement(insertQuery)) {
+                    int pending = 0;
+                    while (rs.next()) {
+                        for (int i = 1; i <= columns; i++) {
+                            insert.setObject(i, rs.getObject(i));
+                        }
+                        insert.addBatch();
+                        if (++pending == COPY_BATCH_SIZE) {
+                            insert.executeBatch();
+                            pending = 0;
+                        }
+                    }
+                    if (pending > 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+        }
+    }
+}
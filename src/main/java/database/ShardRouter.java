@@ -0,0 +1,54 @@
+package database;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent-hash ring mapping account ids to shards. Each shard is placed on the ring at several
+// points derived from its stable id (not its URL, which changes when a host moves or a connection
+// option is added), so adding a shard only moves the accounts that land on its points.
+public class ShardRouter {
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    private final int shardCount;
+
+    public ShardRouter(List<String> shardIds, int virtualNodes) {
+        if (shardIds.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        if (shardIds.stream().distinct().count() != shardIds.size()) {
+            throw new IllegalArgumentException("Shard ids must be unique: " + shardIds);
+        }
+        this.shardCount = shardIds.size();
+        int points = Math.max(1, virtualNodes);
+        for (int shard = 0; shard < shardIds.size(); shard++) {
+            for (int i = 0; i < points; i++) {
+                ring.put(hash(shardIds.get(shard) + "#" + i), shard);
+            }
+        }
+    }
+
+    public int shardFor(String accountId) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        Map.Entry<Long, Integer> owner = ring.ceilingEntry(hash(accountId));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    // FNV-1a over the UTF-8 bytes with a final mix; stable across JVMs, unlike String.hashCode
+    private static long hash(String key) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
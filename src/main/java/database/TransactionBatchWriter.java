@@ -0,0 +1,389 @@
+package database;
+
+import config.AppConfig;
+import metrics.Metrics;
+import models.Transaction;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Group-commit writer for ledger postings and transaction rows. Callers submit work and are
+// released only once the batch containing it has been committed. Work is routed to writer
+// threads by account, so postings for one account are applied in submission order and two
+// writers never contend for the same account row. Each shard has its own writers, so every
+// batch commits on a single shard and write throughput grows with the number of shards.
+// Postings for an account that appears several times in a batch are netted: the row is locked
+// and updated once, and every posting's row is inserted in the same commit. A posting that fails
+// transiently blocks its account: the account's later postings fail with the same error, in this
+// batch or any later one, until that posting is submitted again or released, so they cannot
+// commit ahead of its retry.
+public class TransactionBatchWriter {
+    private final TransactionDataAccess transactionDA;
+    private final LedgerDataAccess ledgerDA;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final List<BlockingQueue<PendingWrite>> queues;
+    private final int writersPerShard;
+    private final boolean nettingEnabled;
+    private final List<Thread> writerThreads;
+    private final Map<String, Blocked> blocked = new ConcurrentHashMap<>();
+    private volatile boolean isRunning = true;
+
+    public TransactionBatchWriter(TransactionDataAccess transactionDA, LedgerDataAccess ledgerDA) {
+        this(transactionDA, ledgerDA,
+                AppConfig.getInt("TX_BATCH_WRITERS", 4),
+                AppConfig.getInt("TX_BATCH_MAX_SIZE", 100),
+                AppConfig.getLong("TX_BATCH_MAX_LATENCY_MS", 2),
+                AppConfig.getBoolean("TX_NETTING_ENABLED", true));
+    }
+
+    public TransactionBatchWriter(TransactionDataAccess transactionDA, LedgerDataAccess ledgerDA,
+                                  int writerCount, int maxBatchSize, long maxLatencyMs, boolean nettingEnabled) {
+        this.transactionDA = transactionDA;
+        this.ledgerDA = ledgerDA;
+        this.nettingEnabled = nettingEnabled;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatencyMs));
+
+        this.writersPerShard = Math.max(1, writerCount);
+        int writers = writersPerShard * Math.max(1, DBManager.getShardCount());
+        this.queues = new ArrayList<>(writers);
+        this.writerThreads = new ArrayList<>(writers);
+        for (int i = 0; i < writers; i++) {
+            BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+            Thread thread = new Thread(() -> writeBatches(queue), "transaction-batch-writer-" + i);
+            thread.setDaemon(true);
+            queues.add(queue);
+            writerThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    // Inserts the row as-is
+    public CompletableFuture<Boolean> submit(Transaction transaction) {
+        return enqueue(new PendingWrite(transaction, WriteKind.INSERT));
+    }
+
+    // Applies the balance change and inserts the row atomically; completes with false when declined
+    public CompletableFuture<Boolean> submitPosting(Transaction transaction) {
+        return enqueue(new PendingWrite(transaction, WriteKind.POSTING));
+    }
+
+    // Applies a balance change that was already checked and inserts the row with the prev/new
+    // balances it carries, without re-checking or reading anything back
+    public CompletableFuture<Boolean> submitRecord(Transaction transaction) {
+        return enqueue(new PendingWrite(transaction, WriteKind.RECORD));
+    }
+
+    // Blocks until the row is durable
+    public void write(Transaction transaction) throws Exception {
+        await(submit(transaction));
+    }
+
+    // Blocks until the posting is durable; prev/new balances are set on the transaction
+    public boolean post(Transaction transaction) throws Exception {
+        return await(submitPosting(transaction));
+    }
+
+    // Lets the account's later postings through again once a posting that blocked it is given up on
+    // or found committed, rather than submitted again
+    public void release(Transaction transaction) {
+        if (!blocked.isEmpty()) {
+            blocked.computeIfPresent(transaction.getAccountId(),
+                    (id, block) -> block.transaction == transaction ? null : block);
+        }
+    }
+
+    public int getPendingCount() {
+        int count = 0;
+        for (BlockingQueue<PendingWrite> queue : queues) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    private CompletableFuture<Boolean> enqueue(PendingWrite write) {
+        if (!isRunning) {
+            write.completion.completeExceptionally(new IllegalStateException("Transaction writer is shut down"));
+            return write.completion;
+        }
+        try {
+            queues.get(queueFor(write.transaction.getAccountId())).add(write);
+        } catch (Exception e) {
+            write.completion.completeExceptionally(e);
+        }
+        return write.completion;
+    }
+
+    private boolean await(CompletableFuture<Boolean> completion) throws Exception {
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new Exception("Error writing transaction: " + cause.getMessage(), cause);
+        }
+    }
+
+    private int queueFor(String accountId) throws Exception {
+        int h = accountId == null ? 0 : accountId.hashCode();
+        h ^= (h >>> 16);
+        int shard = queues.size() > writersPerShard ? DBManager.shardFor(accountId) : 0;
+        return shard * writersPerShard + Math.floorMod(h, writersPerShard);
+    }
+
+    private void writeBatches(BlockingQueue<PendingWrite> queue) {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (isRunning || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Keep collecting until the batch is full or the oldest entry has waited long enough
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                System.err.println("Error in transaction batch writer: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        batch.removeIf(this::failIfBlocked);
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        Metrics.BATCH_FLUSHES.increment();
+        Metrics.BATCH_ENTRIES.add(batch.size());
+        boolean[] results = new boolean[batch.size()];
+        List<Transaction> rows = new ArrayList<>();
+        List<Transaction> balanceChanges = new ArrayList<>();
+
+        // Every entry in the batch belongs to this writer's shard
+        try (Connection connection = DBManager.getConnection(batch.get(0).transaction.getAccountId())) {
+            connection.setAutoCommit(false);
+            try {
+                Map<String, List<Integer>> netted = nettingEnabled ? nettedPostings(batch) : Map.of();
+                for (Map.Entry<String, List<Integer>> account : netted.entrySet()) {
+                    List<Transaction> postings = new ArrayList<>(account.getValue().size());
+                    for (int index : account.getValue()) {
+                        postings.add(batch.get(index).transaction);
+                    }
+                    long postStart = System.nanoTime();
+                    boolean[] accepted = ledgerDA.postNetted(connection, account.getKey(), postings);
+                    Metrics.LEDGER_POST.recordSince(postStart);
+                    Metrics.NETTED_UPDATES.increment();
+                    Metrics.NETTED_POSTINGS.add(postings.size());
+                    for (int j = 0; j < accepted.length; j++) {
+                        results[account.getValue().get(j)] = accepted[j];
+                        if (accepted[j]) {
+                            rows.add(postings.get(j));
+                        }
+                    }
+                }
+
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingWrite write = batch.get(i);
+                    if (write.kind == WriteKind.POSTING) {
+                        if (netted.containsKey(write.transaction.getAccountId())) {
+                            continue;
+                        }
+                        long postStart = System.nanoTime();
+                        results[i] = ledgerDA.post(connection, write.transaction);
+                        Metrics.LEDGER_POST.recordSince(postStart);
+                    } else {
+                        if (write.kind == WriteKind.RECORD) {
+                            balanceChanges.add(write.transaction);
+                        }
+                        rows.add(write.transaction);
+                        results[i] = true;
+                    }
+                }
+                if (!balanceChanges.isEmpty()) {
+                    ledgerDA.applyBalanceChanges(connection, balanceChanges);
+                }
+                if (!rows.isEmpty()) {
+                    transactionDA.insertTransactions(connection, rows);
+                }
+                connection.commit();
+                Metrics.BATCH_FLUSH.recordSince(start);
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).completion.complete(results[i]);
+            }
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                failed(batch.get(0), e);
+                return;
+            }
+            // One bad entry must not fail its neighbours, so retry the batch one by one. After a
+            // transient failure the account's later entries fail with it rather than overtake it;
+            // they are retried behind it.
+            Map<String, Exception> failedAccounts = new HashMap<>();
+            for (PendingWrite write : batch) {
+                Exception earlier = failedAccounts.get(write.transaction.getAccountId());
+                if (earlier != null) {
+                    write.completion.completeExceptionally(earlier);
+                    continue;
+                }
+                if (failIfBlocked(write)) {
+                    continue;
+                }
+                try {
+                    write.completion.complete(writeSingle(write));
+                } catch (Exception singleEx) {
+                    if (TransientErrors.isTransient(singleEx)) {
+                        failedAccounts.put(write.transaction.getAccountId(), singleEx);
+                    }
+                    failed(write, singleEx);
+                }
+            }
+        }
+    }
+
+    // Fails a posting of a blocked account with the error that blocked it. The blocking posting
+    // itself is let through, since its retry is what the account waits for.
+    private boolean failIfBlocked(PendingWrite write) {
+        if (write.kind != WriteKind.POSTING || blocked.isEmpty()) {
+            return false;
+        }
+        Blocked block = blocked.get(write.transaction.getAccountId());
+        if (block == null) {
+            return false;
+        }
+        if (block.transaction == write.transaction) {
+            blocked.remove(write.transaction.getAccountId(), block);
+            return false;
+        }
+        write.completion.completeExceptionally(block.cause);
+        return true;
+    }
+
+    private void failed(PendingWrite write, Exception e) {
+        if (write.kind == WriteKind.POSTING && TransientErrors.isTransient(e)) {
+            blocked.putIfAbsent(write.transaction.getAccountId(), new Blocked(write.transaction, e));
+        }
+        write.completion.completeExceptionally(e);
+    }
+
+    // Batch positions of the postings of every account with more than one posting in the batch, in order
+    private static Map<String, List<Integer>> nettedPostings(List<PendingWrite> batch) {
+        Map<String, List<Integer>> byAccount = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PendingWrite write = batch.get(i);
+            if (write.kind == WriteKind.POSTING) {
+                byAccount.computeIfAbsent(write.transaction.getAccountId(), id -> new ArrayList<>(2)).add(i);
+            }
+        }
+        byAccount.values().removeIf(positions -> positions.size() < 2);
+        return byAccount;
+    }
+
+    private boolean writeSingle(PendingWrite write) throws Exception {
+        if (write.kind == WriteKind.INSERT) {
+            transactionDA.insertTransaction(write.transaction);
+            return true;
+        }
+
+        try (Connection connection = DBManager.getConnection(write.transaction.getAccountId())) {
+            connection.setAutoCommit(false);
+            try {
+                boolean posted = true;
+                if (write.kind == WriteKind.POSTING) {
+                    posted = ledgerDA.post(connection, write.transaction);
+                } else {
+                    ledgerDA.applyBalanceChanges(connection, List.of(write.transaction));
+                    transactionDA.insertTransactions(connection, List.of(write.transaction));
+                }
+                connection.commit();
+                return posted;
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    public void shutdown() {
+        isRunning = false;
+        try {
+            // Writers drain whatever is still queued before exiting
+            for (Thread thread : writerThreads) {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (BlockingQueue<PendingWrite> queue : queues) {
+            PendingWrite leftover;
+            while ((leftover = queue.poll()) != null) {
+                leftover.completion.completeExceptionally(new IllegalStateException("Transaction writer is shut down"));
+            }
+        }
+    }
+
+    private enum WriteKind {
+        INSERT,
+        POSTING,
+        RECORD
+    }
+
+    private static final class Blocked {
+        private final Transaction transaction;
+        private final Exception cause;
+
+        private Blocked(Transaction transaction, Exception cause) {
+            this.transaction = transaction;
+            this.cause = cause;
+        }
+    }
+
+    private static final class PendingWrite {
+        private final Transaction transaction;
+        private final WriteKind kind;
+        private final CompletableFuture<Boolean> completion = new CompletableFuture<>();
+
+        private PendingWrite(Transaction transaction, WriteKind kind) {
+            this.transaction = transaction;
+            this.kind = kind;
+        }
+    }
+}
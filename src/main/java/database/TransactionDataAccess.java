@@ -1,51 +1,49 @@
 package database;
 
+import models.Money;
 import models.Transaction;
+import models.User;
+import java.math.BigDecimal;
 import java.sql.*;
+import java.time.Instant;
+import java.util.List;
 
 public class TransactionDataAccess {
 
-    public void insertTransaction(Transaction transaction) throws Exception {
-        String query = """
+    // Amounts carry the account's currency, which lives on users
+    private static final String SELECT_FROM = """
+            SELECT t.transaction_id, t.account_id, t.amount, t.type, t.status, t.prev_balance, t.new_balance,
+                t.failure_reason, t.creation_time, t.processed_time, t.attempts, u.currency
+            FROM transactions t JOIN users u ON u.user_id = t.account_id
+        """;
+
+    private static final String FIND_BY_ID_QUERY = SELECT_FROM + " WHERE t.transaction_id = ?";
+
+    // Newest first. Seeks past the last row of the previous page on the
+    // (account_id, creation_time, transaction_id) index instead of counting rows with OFFSET,
+    // so every page costs the same however deep it is.
+    private static final String HISTORY_FIRST_PAGE_QUERY = SELECT_FROM
+            + " WHERE t.account_id = ?"
+            + " ORDER BY t.creation_time DESC, t.transaction_id DESC LIMIT ?";
+    private static final String HISTORY_NEXT_PAGE_QUERY = SELECT_FROM
+            + " WHERE t.account_id = ? AND (t.creation_time < ? OR (t.creation_time = ? AND t.transaction_id < ?))"
+            + " ORDER BY t.creation_time DESC, t.transaction_id DESC LIMIT ?";
+
+    private static final String INSERT_QUERY = """
             INSERT INTO transactions (
                 transaction_id, account_id, amount, type, status,
                 prev_balance, new_balance, failure_reason,
-                creation_time, processed_time
-            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                creation_time, processed_time, attempts
+            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
         """;
 
-        try {
-            Connection connection = DBManager.getConnection();
-            PreparedStatement ps = connection.prepareStatement(query);
+    public void insertTransaction(Transaction transaction) throws Exception {
+        try (Connection connection = DBManager.getConnection(transaction.getAccountId());
+             PreparedStatement ps = connection.prepareStatement(INSERT_QUERY)) {
 
             connection.setAutoCommit(false);
 
-            ps.setString(1, transaction.getTransactionId());
-            ps.setString(2, transaction.getAccountId());
-            ps.setBigDecimal(3, transaction.getAmount());
-            ps.setString(4, transaction.getType().name());
-            ps.setString(5, transaction.getStatus().name());
-
-            // Handle null values properly
-            if (transaction.getPrevBalance() != null) {
-                ps.setBigDecimal(6, transaction.getPrevBalance());
-            } else {
-                ps.setNull(6, java.sql.Types.DECIMAL);
-            }
-
-            if (transaction.getNewBalance() != null) {
-                ps.setBigDecimal(7, transaction.getNewBalance());
-            } else {
-                ps.setNull(7, java.sql.Types.DECIMAL);
-            }
-
-            ps.setString(8, transaction.getFailureReason());
-
-            // Convert Instant to Timestamp
-            ps.setTimestamp(9, transaction.getCreationTime() != null ?
-                    Timestamp.from(transaction.getCreationTime()) : null);
-            ps.setTimestamp(10, transaction.getProcessedTime() != null ?
-                    Timestamp.from(transaction.getProcessedTime()) : null);
+            bindTransaction(ps, transaction);
 
             int rowsAffected = ps.executeUpdate();
             if (rowsAffected != 1) {
@@ -58,4 +56,142 @@ public class TransactionDataAccess {
             throw new Exception("Error inserting transaction: " + e.getMessage(), e);
         }
     }
-}
\ No newline at end of file
+
+    // Writes all rows as one JDBC batch on the caller's connection; the caller owns the commit
+    public void insertTransactions(Connection connection, List<Transaction> transactions) throws Exception {
+        try (PreparedStatement ps = connection.prepareStatement(INSERT_QUERY)) {
+            for (Transaction transaction : transactions) {
+                bindTransaction(ps, transaction);
+                ps.addBatch();
+            }
+
+            int[] results = ps.executeBatch();
+            for (int result : results) {
+                if (result != 1 && result != Statement.SUCCESS_NO_INFO) {
+                    throw new Exception("Failed to insert transaction batch");
+                }
+            }
+
+        } catch (Exception e) {
+            throw new Exception("Error inserting transactions: " + e.getMessage(), e);
+        }
+    }
+
+    // Transactions live on their account's shard, so without the account every shard is asked
+    public Transaction findById(String transactionId) throws Exception {
+        try {
+            for (int shard = 0; shard < DBManager.getShardCount(); shard++) {
+                Transaction transaction = findById(transactionId, shard);
+                if (transaction != null) {
+                    return transaction;
+                }
+            }
+            return null;
+
+        } catch (Exception e) {
+            throw new Exception("Error fetching transaction: " + e.getMessage(), e);
+        }
+    }
+
+    // Only the account's shard is asked
+    public Transaction findById(String transactionId, String accountId) throws Exception {
+        try {
+            return findById(transactionId, DBManager.shardFor(accountId));
+        } catch (Exception e) {
+            throw new Exception("Error fetching transaction: " + e.getMessage(), e);
+        }
+    }
+
+    private Transaction findById(String transactionId, int shard) throws Exception {
+        try (Connection connection = DBManager.getShardConnection(shard);
+             PreparedStatement ps = connection.prepareStatement(FIND_BY_ID_QUERY)) {
+
+            ps.setString(1, transactionId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? mapTransaction(rs) : null;
+            }
+        }
+    }
+
+    // Passes up to limit rows to handler as they are read, newest first, starting after the
+    // (afterTime, afterId) position of the previous page, or from the newest row when afterTime is null
+    public void findByAccount(String accountId, Instant afterTime, String afterId, int limit,
+                              TransactionRepository.RowHandler handler) throws Exception {
+        String query = afterTime == null ? HISTORY_FIRST_PAGE_QUERY : HISTORY_NEXT_PAGE_QUERY;
+        try (Connection connection = DBManager.getConnection(accountId);
+             PreparedStatement ps = connection.prepareStatement(query)) {
+
+            int index = 1;
+            ps.setString(index++, accountId);
+            if (afterTime != null) {
+                Timestamp after = Timestamp.from(afterTime);
+                ps.setTimestamp(index++, after);
+                ps.setTimestamp(index++, after);
+                ps.setString(index++, afterId);
+            }
+            ps.setInt(index, limit);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    handler.accept(mapTransaction(rs));
+                }
+            }
+
+        } catch (Exception e) {
+            throw new Exception("Error fetching transaction history: " + e.getMessage(), e);
+        }
+    }
+
+    private Transaction mapTransaction(ResultSet rs) throws SQLException {
+        User.Currency currency = User.Currency.valueOf(rs.getString("currency"));
+        Timestamp creationTime = rs.getTimestamp("creation_time");
+        Timestamp processedTime = rs.getTimestamp("processed_time");
+        Transaction transaction = new Transaction(
+                rs.getString("transaction_id"),
+                rs.getString("account_id"),
+                toMoney(rs.getBigDecimal("amount"), currency),
+                Transaction.TransactionType.valueOf(rs.getString("type")),
+                Transaction.TransactionStatus.valueOf(rs.getString("status")),
+                toMoney(rs.getBigDecimal("prev_balance"), currency),
+                toMoney(rs.getBigDecimal("new_balance"), currency),
+                rs.getString("failure_reason"),
+                creationTime != null ? creationTime.toInstant() : null,
+                processedTime != null ? processedTime.toInstant() : null);
+        transaction.setAttempts(rs.getInt("attempts"));
+        return transaction;
+    }
+
+    private static Money toMoney(BigDecimal value, User.Currency currency) {
+        return value != null ? Money.fromDecimal(value, currency) : null;
+    }
+
+    private void bindTransaction(PreparedStatement ps, Transaction transaction) throws SQLException {
+        ps.setString(1, transaction.getTransactionId());
+        ps.setString(2, transaction.getAccountId());
+        ps.setBigDecimal(3, transaction.getAmount().toDecimal());
+        ps.setString(4, transaction.getType().name());
+        ps.setString(5, transaction.getStatus().name());
+
+        // Handle null values properly
+        if (transaction.getPrevBalance() != null) {
+            ps.setBigDecimal(6, transaction.getPrevBalance().toDecimal());
+        } else {
+            ps.setNull(6, java.sql.Types.DECIMAL);
+        }
+
+        if (transaction.getNewBalance() != null) {
+            ps.setBigDecimal(7, transaction.getNewBalance().toDecimal());
+        } else {
+            ps.setNull(7, java.sql.Types.DECIMAL);
+        }
+
+        ps.setString(8, transaction.getFailureReason());
+
+        // Convert Instant to Timestamp
+        ps.setTimestamp(9, transaction.getCreationTime() != null ?
+                Timestamp.from(transaction.getCreationTime()) : null);
+        ps.setTimestamp(10, transaction.getProcessedTime() != null ?
+                Timestamp.from(transaction.getProcessedTime()) : null);
+        ps.setInt(11, Math.max(1, transaction.getAttempts()));
+    }
+}
@@ -0,0 +1,44 @@
+package database;
+
+import models.Transaction;
+
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+// Storage for transactions and the balance changes they make. Writes are asynchronous so an
+// implementation can commit several of them together.
+public interface TransactionRepository {
+
+    interface RowHandler {
+        void accept(Transaction transaction) throws Exception;
+    }
+
+    Transaction findById(String transactionId) throws Exception;
+
+    // Same, for a caller that knows the transaction's account, so only its shard is asked
+    Transaction findById(String transactionId, String accountId) throws Exception;
+
+    // Passes up to limit rows to handler, newest first, starting after the (afterTime, afterId)
+    // position of the previous page, or from the newest row when afterTime is null
+    void findByAccount(String accountId, Instant afterTime, String afterId, int limit, RowHandler handler) throws Exception;
+
+    // Checks the balance, applies the change and stores the row atomically, setting prev/new
+    // balances on the transaction. Completes with false when the account is missing or a
+    // withdrawal would overdraw it.
+    CompletableFuture<Boolean> submitPosting(Transaction transaction);
+
+    // Applies a change that was already checked and stores the row with the prev/new balances it carries
+    CompletableFuture<Boolean> submitRecord(Transaction transaction);
+
+    // Stores the row of a transaction that failed, leaving the balance alone
+    CompletableFuture<Boolean> submitFailed(Transaction transaction);
+
+    // A posting that failed transiently holds back the account's later postings until it is
+    // submitted again; this lets them through when it is instead given up on or found committed
+    void releaseAccount(Transaction transaction);
+
+    // Writes accepted but not yet committed
+    int getPendingWrites();
+
+    void shutdown();
+}
@@ -0,0 +1,39 @@
+package database;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Set;
+
+// Tells database failures worth retrying (lock waits, deadlocks, lost or exhausted connections)
+// from ones that would fail the same way again (bad data, constraint violations)
+public final class TransientErrors {
+    // MySQL: lock wait timeout, deadlock, too many connections, server gone away, lost connection
+    private static final Set<Integer> TRANSIENT_ERROR_CODES = Set.of(1205, 1213, 1040, 2006, 2013);
+    private static final int MAX_CAUSE_DEPTH = 16;
+
+    private TransientErrors() {
+    }
+
+    // Looks through the wrapping exceptions for the underlying SQL error
+    public static boolean isTransient(Throwable error) {
+        Throwable current = error;
+        for (int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++) {
+            if (current instanceof SQLTransientException || current instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (current instanceof SQLException sql) {
+                String state = sql.getSQLState();
+                // Class 08 is a connection failure, class 40 a rolled-back transaction
+                if (state != null && (state.startsWith("08") || state.startsWith("40"))) {
+                    return true;
+                }
+                if (TRANSIENT_ERROR_CODES.contains(sql.getErrorCode())) {
+                    return true;
+                }
+            }
+            current = current.getCause() == current ? null : current.getCause();
+        }
+        return false;
+    }
+}
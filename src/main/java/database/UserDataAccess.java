@@ -1,28 +1,50 @@
 package database;
 
-import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLIntegrityConstraintViolationException;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-import models.Transaction;
+import models.Money;
 import models.User;
-import models.User.Currency;
 
-public class UserDataAccess {
-    public void createUser (String userId, String username, BigDecimal balance, Currency currency) throws Exception {
-        String query = "INSERT INTO users (user_id, username, balance, currency, created_at, updated_at) VALUES (?, ?, ?, ?, ?, ?)";
+public class UserDataAccess implements AccountRepository {
+    // Most ids bound to one IN list
+    private static final int MAX_IDS_PER_QUERY = 500;
 
+    // Each shard's UNIQUE constraint only sees its own rows, so with more than one shard the username
+    // is first claimed in the usernames table on shard 0 and given back if the insert fails
+    @Override
+    public void createUser (String userId, String username, Money balance) throws Exception {
+        boolean claimed = DBManager.getShardCount() > 1 && claimUsername(userId, username);
+        boolean created = false;
         try {
-            Connection connection = DBManager.getConnection();
-            PreparedStatement ps = connection.prepareStatement(query);
-            
+            insertUser(userId, username, balance);
+            created = true;
+        } finally {
+            if (claimed && !created) {
+                releaseUsername(userId, username);
+            }
+        }
+    }
+
+    private void insertUser(String userId, String username, Money balance) throws Exception {
+        String query = "INSERT INTO users (user_id, username, balance, currency, created_at, updated_at) VALUES (?, ?, ?, ?, ?, ?)";
+
+        try (Connection connection = DBManager.getConnection(userId);
+             PreparedStatement ps = connection.prepareStatement(query)) {
+
             ps.setString(1, userId);
             ps.setString(2, username);
-            ps.setBigDecimal(3, balance);
-            ps.setString(4, currency.name());
+            ps.setBigDecimal(3, balance.toDecimal());
+            ps.setString(4, balance.getCurrency().name());
             Timestamp now = Timestamp.from(Instant.now());
             ps.setTimestamp(5, now);
             ps.setTimestamp(6, now);
@@ -34,16 +56,59 @@ public class UserDataAccess {
         }
     }
 
+    // True once the name is held for userId; throws when another account holds it
+    private boolean claimUsername(String userId, String username) throws Exception {
+        String query = "INSERT INTO usernames (username, user_id) VALUES (?, ?)";
+        try (Connection connection = DBManager.getConnection();
+             PreparedStatement ps = connection.prepareStatement(query)) {
+
+            ps.setString(1, username);
+            ps.setString(2, userId);
+            ps.executeUpdate();
+        } catch (SQLIntegrityConstraintViolationException duplicate) {
+            throw new Exception("Username already taken: " + username);
+        } catch (Exception e) {
+            throw new Exception("Error creating user: " + e.getMessage());
+        }
+        // Accounts created before the table existed hold their names without a row in it
+        User holder;
+        try {
+            holder = findUser(2, username);
+        } catch (Exception e) {
+            releaseUsername(userId, username);
+            throw e;
+        }
+        if (holder != null && !holder.getUserId().equals(userId)) {
+            releaseUsername(userId, username);
+            throw new Exception("Username already taken: " + username);
+        }
+        return true;
+    }
+
+    private void releaseUsername(String userId, String username) {
+        String query = "DELETE FROM usernames WHERE username = ? AND user_id = ?";
+        try (Connection connection = DBManager.getConnection();
+             PreparedStatement ps = connection.prepareStatement(query)) {
+
+            ps.setString(1, username);
+            ps.setString(2, userId);
+            ps.executeUpdate();
+        } catch (Exception e) {
+            System.err.println("Error releasing username " + username + ": " + e.getMessage());
+        }
+    }
+
+    @Override
     public boolean userExists(String userId) throws Exception {
         String query = "SELECT COUNT(*) FROM users WHERE user_id = ?";
-        try {
-            Connection connection = DBManager.getConnection();
-            PreparedStatement ps = connection.prepareStatement(query);
+        try (Connection connection = DBManager.getConnection(userId);
+             PreparedStatement ps = connection.prepareStatement(query)) {
 
             ps.setString(1, userId);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt(1) > 0;
+                }
             }
 
         } catch (Exception e) {
@@ -52,35 +117,75 @@ public class UserDataAccess {
         return false;
     }
 
+    @Override
     public User findByUserId(String userId) throws Exception {
         return findUser(1, userId);
     }
 
+    // One query per shard holding any of the ids, or a few for long lists
+    @Override
+    public Map<String, User> findByUserIds(Collection<String> userIds) throws Exception {
+        try {
+            Map<Integer, List<String>> byShard = new HashMap<>();
+            for (String userId : userIds) {
+                byShard.computeIfAbsent(DBManager.shardFor(userId), shard -> new ArrayList<>()).add(userId);
+            }
+            Map<String, User> found = new HashMap<>();
+            for (Map.Entry<Integer, List<String>> shard : byShard.entrySet()) {
+                List<String> ids = shard.getValue();
+                try (Connection connection = DBManager.getShardConnection(shard.getKey())) {
+                    for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+                        List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+                        String query = "SELECT * FROM users WHERE user_id IN (" + "?, ".repeat(chunk.size() - 1) + "?)";
+                        try (PreparedStatement ps = connection.prepareStatement(query)) {
+                            for (int i = 0; i < chunk.size(); i++) {
+                                ps.setString(i + 1, chunk.get(i));
+                            }
+                            try (ResultSet rs = ps.executeQuery()) {
+                                while (rs.next()) {
+                                    User user = mapUser(rs);
+                                    found.put(user.getUserId(), user);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            return found;
+        }
+        catch (Exception e) {
+            throw new Exception("Error finding users: " + e.getMessage());
+        }
+    }
+
+    @Override
     public User findByUsername(String username) throws Exception {
         return findUser(2, username);
     }
 
     public User findUser(int type, String userDetail) throws Exception{
-        try {
-            String query = "";
-            if (type == 1)
-                query = "SELECT * FROM users WHERE user_id = ?";
-            else if (type == 2)
-                query = "SELECT * FROM users WHERE username = ?";
-            Connection connection = DBManager.getConnection();
-            PreparedStatement ps = connection.prepareStatement(query);
+        if (type == 1) {
+            return findUser("SELECT * FROM users WHERE user_id = ?", userDetail, DBManager.shardFor(userDetail));
+        }
+        // Accounts are sharded by id, so a username can be on any shard
+        for (int shard = 0; shard < DBManager.getShardCount(); shard++) {
+            User user = findUser("SELECT * FROM users WHERE username = ?", userDetail, shard);
+            if (user != null) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    private User findUser(String query, String userDetail, int shard) throws Exception {
+        try (Connection connection = DBManager.getShardConnection(shard);
+             PreparedStatement ps = connection.prepareStatement(query)) {
 
             ps.setString(1, userDetail);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                User user = new User();
-                user.setUserId(rs.getString("user_id"));
-                user.setUsername(rs.getString("username"));
-                user.setBalance(rs.getBigDecimal("balance"));
-                user.setCurrency(User.Currency.valueOf(rs.getString("currency")));
-                user.setCreatedAt(rs.getTimestamp("created_at").toInstant());
-                user.setUpdatedAt(rs.getTimestamp("updated_at").toInstant());
-                return user;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return mapUser(rs);
+                }
             }
         }
         catch (Exception e) {
@@ -89,55 +194,108 @@ public class UserDataAccess {
         return null;
     }
 
-    public void updateBalance(String userId, BigDecimal newBalance) throws Exception {
-        String selectQuery = "SELECT * FROM users WHERE user_id = ? FOR UPDATE";
-        String updateQuery = "UPDATE users SET balance = ?, updated_at = ? WHERE user_id = ?";
+    private static User mapUser(ResultSet rs) throws Exception {
+        User user = new User();
+        user.setUserId(rs.getString("user_id"));
+        user.setUsername(rs.getString("username"));
+        User.Currency currency = User.Currency.valueOf(rs.getString("currency"));
+        user.setBalance(Money.fromDecimal(rs.getBigDecimal("balance"), currency));
+        user.setCurrency(currency);
+        user.setCreatedAt(rs.getTimestamp("created_at").toInstant());
+        user.setUpdatedAt(rs.getTimestamp("updated_at").toInstant());
+        return user;
+    }
 
-        Connection connection = null;
+    // Streams every account's balance to handler without holding the whole table in memory
+    @Override
+    public long forEachBalance(BalanceHandler handler) throws Exception {
         try {
-            connection = DBManager.getConnection();
-            connection.setAutoCommit(false);
+            return forEachRow("SELECT user_id, balance, currency FROM users", rs -> {
+                User.Currency currency = User.Currency.valueOf(rs.getString("currency"));
+                handler.accept(rs.getString("user_id"), Money.fromDecimal(rs.getBigDecimal("balance"), currency));
+            });
+        }
+        catch (Exception e) {
+            throw new Exception("Error loading balances: " + e.getMessage(), e);
+        }
+    }
 
-            PreparedStatement ps1 = connection.prepareStatement(selectQuery);
+    // Streams every user id and username to handler
+    @Override
+    public long forEachAccount(AccountHandler handler) throws Exception {
+        try {
+            return forEachRow("SELECT user_id, username FROM users",
+                    rs -> handler.accept(rs.getString("user_id"), rs.getString("username")));
+        }
+        catch (Exception e) {
+            throw new Exception("Error loading accounts: " + e.getMessage(), e);
+        }
+    }
 
-            ps1.setString(1, userId);
-            ResultSet rs = ps1.executeQuery();
-            if (!rs.next()) {
-                throw new Exception("User not found with ID: " + userId);
-            }
+    private interface RowReader {
+        void read(ResultSet rs) throws Exception;
+    }
 
-            PreparedStatement ps2 = connection.prepareStatement(updateQuery);
-            
-            ps2.setBigDecimal(1, newBalance);
-            ps2.setTimestamp(2, Timestamp.from(Instant.now()));
-            ps2.setString(3, userId);
+    // Runs the query on every shard in turn and streams its rows to reader
+    private long forEachRow(String query, RowReader reader) throws Exception {
+        long count = 0;
+        for (int shard = 0; shard < DBManager.getShardCount(); shard++) {
+            try (Connection connection = DBManager.getShardConnection(shard);
+                 PreparedStatement ps = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
 
-            int rowsAffected = ps2.executeUpdate();
-            if (rowsAffected == 0) {
-                throw new Exception("Failed to update balance for user: " + userId);
+                // Tells MySQL Connector/J to stream rows instead of buffering the result
+                ps.setFetchSize(Integer.MIN_VALUE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        reader.read(rs);
+                        count++;
+                    }
+                }
             }
-
         }
-        catch (Exception e) {
+        return count;
+    }
+
+    @Override
+    public void updateBalance(String userId, Money newBalance) throws Exception {
+        String selectQuery = "SELECT * FROM users WHERE user_id = ? FOR UPDATE";
+        String updateQuery = "UPDATE users SET balance = ?, updated_at = ? WHERE user_id = ?";
+
+        try (Connection connection = DBManager.getConnection(userId)) {
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement ps1 = connection.prepareStatement(selectQuery);
+                 PreparedStatement ps2 = connection.prepareStatement(updateQuery)) {
+
+                ps1.setString(1, userId);
+                try (ResultSet rs = ps1.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new Exception("User not found with ID: " + userId);
+                    }
+                }
+
+                ps2.setBigDecimal(1, newBalance.toDecimal());
+                ps2.setTimestamp(2, Timestamp.from(Instant.now()));
+                ps2.setString(3, userId);
 
-            if (connection != null) {
+                int rowsAffected = ps2.executeUpdate();
+                if (rowsAffected == 0) {
+                    throw new Exception("Failed to update balance for user: " + userId);
+                }
+
+                connection.commit();
+            }
+            catch (Exception e) {
                 try {
                     connection.rollback();
                 } catch (Exception rollbackEx) {
                     System.err.println("Error during transaction rollback: " + rollbackEx.getMessage());
                 }
+                throw e;
             }
-
-            throw new Exception("Error updating user balance: " + e.getMessage());
         }
-        finally {
-            if (connection != null) {
-                try {
-                    connection.setAutoCommit(true);
-                } catch (Exception ex) {
-                    System.err.println("Error resetting auto-commit: " + ex.getMessage());
-                }
-            }
+        catch (Exception e) {
+            throw new Exception("Error updating user balance: " + e.getMessage());
         }
     }
 
@@ -0,0 +1,121 @@
+package metrics;
+
+import config.AppConfig;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free log-linear histogram of nanosecond latencies in the style of HdrHistogram:
+// every power of two is split into 32 linear buckets, so recorded values keep about 3% precision
+// from 1ns up to the cap of 2^41ns, about 36.6 minutes.
+// Count and sum cover the whole lifetime, but quantiles only cover the last
+// METRICS_QUANTILE_WINDOW_SECONDS: buckets are kept in time slices that are cleared as the window
+// moves on, so quantiles follow current latency instead of settling on the lifetime distribution.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int WINDOW_SLICES = 6;
+    private static final long SLICE_MILLIS = Math.max(1,
+            TimeUnit.SECONDS.toMillis(AppConfig.getLong("METRICS_QUANTILE_WINDOW_SECONDS", 60)) / WINDOW_SLICES);
+
+    private final AtomicLongArray[] slices = new AtomicLongArray[WINDOW_SLICES];
+    // Time slice number, in SLICE_MILLIS since the epoch, that each slice currently holds
+    private final AtomicLongArray sliceNumbers = new AtomicLongArray(WINDOW_SLICES);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < WINDOW_SLICES; i++) {
+            slices[i] = new AtomicLongArray(BUCKET_COUNT);
+        }
+    }
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        currentSlice().incrementAndGet(bucketFor(value));
+        count.increment();
+        sumNanos.add(value);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    // Upper bound of the bucket holding the given quantile among the values recorded within the
+    // window, in nanoseconds; 0 when none were
+    public long valueAtQuantile(double quantile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        long oldest = System.currentTimeMillis() / SLICE_MILLIS - WINDOW_SLICES + 1;
+        for (int slice = 0; slice < WINDOW_SLICES; slice++) {
+            if (sliceNumbers.get(slice) < oldest) {
+                continue;
+            }
+            AtomicLongArray buckets = slices[slice];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long value = buckets.get(i);
+                snapshot[i] += value;
+                total += value;
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    // The first recorder of a new time slice clears what the slot held a full window ago. Values
+    // recorded by other threads while it clears may be lost, which is fine for quantiles.
+    private AtomicLongArray currentSlice() {
+        long number = System.currentTimeMillis() / SLICE_MILLIS;
+        int slot = (int) (number % WINDOW_SLICES);
+        long held = sliceNumbers.get(slot);
+        if (held < number && sliceNumbers.compareAndSet(slot, held, number)) {
+            AtomicLongArray buckets = slices[slot];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.set(i, 0);
+            }
+        }
+        return slices[slot];
+    }
+
+    private static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        // The top SUB_BUCKET_BITS + 1 bits pick the linear bucket within this power of two
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
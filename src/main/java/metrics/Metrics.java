@@ -0,0 +1,52 @@
+package metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide latency histograms and counters for the payment pipeline
+public final class Metrics {
+    // Account lookup and request validation in PaymentService
+    public static final LatencyHistogram VALIDATION = new LatencyHistogram();
+    // TransactionQueue.enqueue, including the journal append
+    public static final LatencyHistogram ENQUEUE = new LatencyHistogram();
+    // From enqueue until a worker starts executing the transaction
+    public static final LatencyHistogram QUEUE_WAIT = new LatencyHistogram();
+    // PaymentService.executeTransaction end to end
+    public static final LatencyHistogram EXECUTE = new LatencyHistogram();
+    // One ledger posting statement: balance update plus transaction insert
+    public static final LatencyHistogram LEDGER_POST = new LatencyHistogram();
+    // One group commit of the batch writer, all statements plus the commit
+    public static final LatencyHistogram BATCH_FLUSH = new LatencyHistogram();
+
+    public static final LongAdder TRANSACTIONS_COMPLETED = new LongAdder();
+    public static final LongAdder TRANSACTIONS_FAILED = new LongAdder();
+    // Transient failures scheduled for another attempt
+    public static final LongAdder TRANSACTIONS_RETRIED = new LongAdder();
+    public static final LongAdder BATCH_FLUSHES = new LongAdder();
+    public static final LongAdder BATCH_ENTRIES = new LongAdder();
+    // Postings applied as part of a per-account net balance update, and the updates they shared
+    public static final LongAdder NETTED_POSTINGS = new LongAdder();
+    public static final LongAdder NETTED_UPDATES = new LongAdder();
+
+    private static final Map<String, LatencyHistogram> httpLatency = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> httpResponses = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    // Keyed by context path, so the number of series is bounded by the registered handlers
+    public static void recordHttp(String endpoint, int statusCode, long startNanos) {
+        httpLatency.computeIfAbsent(endpoint, k -> new LatencyHistogram()).recordSince(startNanos);
+        httpResponses.computeIfAbsent(endpoint + " " + statusCode, k -> new LongAdder()).increment();
+    }
+
+    public static Map<String, LatencyHistogram> getHttpLatency() {
+        return httpLatency;
+    }
+
+    // Keys are "<endpoint> <status code>"
+    public static Map<String, LongAdder> getHttpResponses() {
+        return httpResponses;
+    }
+}
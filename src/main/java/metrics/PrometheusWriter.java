@@ -0,0 +1,64 @@
+package metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Renders metrics in the Prometheus text exposition format (version 0.0.4)
+public class PrometheusWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder out = new StringBuilder(4096);
+
+    public PrometheusWriter header(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter gauge(String name, String help, double value) {
+        return header(name, "gauge", help).sample(name, null, value);
+    }
+
+    public PrometheusWriter counter(String name, String help, long value) {
+        return header(name, "counter", help).sample(name, null, value);
+    }
+
+    // Writes quantiles, sum and count of one histogram under the given labels, e.g. stage="enqueue".
+    // Quantiles cover the histogram's recent window; sum and count are cumulative.
+    // The family header must be written once beforehand with type summary.
+    public PrometheusWriter summary(String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            String quantileLabel = "quantile=\"" + quantile + "\"";
+            sample(name, labels == null ? quantileLabel : labels + "," + quantileLabel,
+                    histogram.valueAtQuantile(quantile) / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+        sample(name + "_sum", labels, histogram.getSumSeconds());
+        sample(name + "_count", labels, histogram.getCount());
+        return this;
+    }
+
+    public PrometheusWriter sample(String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+        return this;
+    }
+
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    public byte[] toByteArray() {
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,157 @@
+package models;
+
+import java.math.BigDecimal;
+
+// Immutable amount held as a long count of minor units (hundredths), matching the DECIMAL(19,2)
+// columns. Arithmetic is overflow-checked and never allocates a BigDecimal; conversion to and
+// from BigDecimal only happens at the JDBC boundary.
+public final class Money implements Comparable<Money> {
+    public static final int SCALE = 2;
+    private static final long MINOR_PER_MAJOR = 100;
+
+    private final long minorUnits;
+    private final User.Currency currency;
+
+    private Money(long minorUnits, User.Currency currency) {
+        if (currency == null) {
+            throw new IllegalArgumentException("Currency is required");
+        }
+        this.minorUnits = minorUnits;
+        this.currency = currency;
+    }
+
+    public static Money ofMinor(long minorUnits, User.Currency currency) {
+        return new Money(minorUnits, currency);
+    }
+
+    public static Money zero(User.Currency currency) {
+        return new Money(0, currency);
+    }
+
+    // Exact: throws ArithmeticException when the value has more than two decimals or does not fit
+    public static Money fromDecimal(BigDecimal value, User.Currency currency) {
+        return new Money(value.movePointRight(SCALE).longValueExact(), currency);
+    }
+
+    // Parses a plain decimal such as "125", "-3.5" or "0.07" into minor units without allocating.
+    // Anything else (exponents, more than two decimals) goes through BigDecimal and must still be exact.
+    public static long parseMinorUnits(String text) {
+        if (text == null || text.isEmpty()) {
+            throw new NumberFormatException("Amount is required");
+        }
+        int i = 0;
+        boolean negative = text.charAt(0) == '-';
+        if (negative || text.charAt(0) == '+') {
+            i++;
+        }
+
+        long major = 0;
+        int digits = 0;
+        int length = text.length();
+        while (i < length && Character.isDigit(text.charAt(i)) && digits < 16) {
+            major = major * 10 + (text.charAt(i++) - '0');
+            digits++;
+        }
+
+        long minor = 0;
+        int decimals = 0;
+        if (i < length && text.charAt(i) == '.') {
+            i++;
+            while (i < length && Character.isDigit(text.charAt(i)) && decimals < SCALE) {
+                minor = minor * 10 + (text.charAt(i++) - '0');
+                decimals++;
+            }
+        }
+
+        if (i != length || (digits == 0 && decimals == 0)) {
+            try {
+                return new BigDecimal(text).movePointRight(SCALE).longValueExact();
+            } catch (ArithmeticException e) {
+                throw new NumberFormatException("Amount must have at most " + SCALE + " decimal places: " + text);
+            }
+        }
+        for (; decimals < SCALE; decimals++) {
+            minor *= 10;
+        }
+        long value = major * MINOR_PER_MAJOR + minor;
+        return negative ? -value : value;
+    }
+
+    public long getMinorUnits() {
+        return minorUnits;
+    }
+
+    public User.Currency getCurrency() {
+        return currency;
+    }
+
+    public Money add(Money other) {
+        requireSameCurrency(other);
+        return new Money(Math.addExact(minorUnits, other.minorUnits), currency);
+    }
+
+    public Money subtract(Money other) {
+        requireSameCurrency(other);
+        return new Money(Math.subtractExact(minorUnits, other.minorUnits), currency);
+    }
+
+    public Money negate() {
+        return new Money(Math.negateExact(minorUnits), currency);
+    }
+
+    public boolean isPositive() {
+        return minorUnits > 0;
+    }
+
+    public boolean isNegative() {
+        return minorUnits < 0;
+    }
+
+    public BigDecimal toDecimal() {
+        return BigDecimal.valueOf(minorUnits, SCALE);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        requireSameCurrency(other);
+        return Long.compare(minorUnits, other.minorUnits);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Money other)) {
+            return false;
+        }
+        return minorUnits == other.minorUnits && currency == other.currency;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(minorUnits) * 31 + currency.hashCode();
+    }
+
+    // Plain decimal with two places, e.g. "-12.05"; the currency is not included
+    @Override
+    public String toString() {
+        long abs = Math.abs(minorUnits);
+        StringBuilder sb = new StringBuilder(24);
+        if (minorUnits < 0) {
+            sb.append('-');
+        }
+        sb.append(abs / MINOR_PER_MAJOR).append('.');
+        long cents = abs % MINOR_PER_MAJOR;
+        if (cents < 10) {
+            sb.append('0');
+        }
+        return sb.append(cents).toString();
+    }
+
+    private void requireSameCurrency(Money other) {
+        if (currency != other.currency) {
+            throw new IllegalArgumentException("Currency mismatch: " + currency + " and " + other.currency);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package models;
+
+// One deposit or withdrawal submitted through the bulk endpoint
+public class PaymentRequest {
+    private final Transaction.TransactionType type;
+    private final String userId;
+    // In minor units; the currency is the account's
+    private final long amountMinor;
+    private final String idempotencyKey;
+    // Null for the bulk endpoint's default
+    private final Transaction.Priority priority;
+
+    public PaymentRequest(Transaction.TransactionType type, String userId, long amountMinor, String idempotencyKey) {
+        this(type, userId, amountMinor, idempotencyKey, null);
+    }
+
+    public PaymentRequest(Transaction.TransactionType type, String userId, long amountMinor, String idempotencyKey,
+                          Transaction.Priority priority) {
+        this.type = type;
+        this.userId = userId;
+        this.amountMinor = amountMinor;
+        this.idempotencyKey = idempotencyKey;
+        this.priority = priority;
+    }
+
+    public Transaction.TransactionType getType() {
+        return type;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public long getAmountMinor() {
+        return amountMinor;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public Transaction.Priority getPriority() {
+        return priority;
+    }
+}
@@ -1,6 +1,5 @@
 package models;
 
-import java.math.BigDecimal;
 import java.time.Instant;
 
 public class Transaction {
@@ -8,25 +7,37 @@ public class Transaction {
         DEPOSIT, WITHDRAW
     }
     public enum TransactionStatus {
-        PENDING, PROCESSING, COMPLETED, FAILED
+        PENDING, PROCESSING, COMPLETED, FAILED, RETRYING
+    }
+    // Selects the queue lane; lanes are served in proportion to their weights
+    public enum Priority {
+        INTERACTIVE, NORMAL, BULK
     }
 
     private String transactionId;
     private String accountId;
-    private BigDecimal amount;
+    private Money amount;
     private TransactionType type;
     private TransactionStatus status;
-    private BigDecimal prevBalance;
-    private BigDecimal newBalance;
+    private Money prevBalance;
+    private Money newBalance;
     private String failureReason;  // ADDED: Missing field
     private Instant creationTime;
     private Instant processedTime;
+    // Times execution was attempted, including retries after transient failures
+    private int attempts;
+    private Priority priority = Priority.NORMAL;
+    // System.nanoTime() when the transaction was queued; in-process only, never persisted
+    private long enqueuedNanos;
+    // Lane the transaction was queued in, which can differ from its priority when it joined its
+    // account's earlier transactions; in-process only, never persisted
+    private Priority queuedLane;
 
     public Transaction() {}
 
-    public Transaction(String transactionId, String accountId, BigDecimal amount,
-                       TransactionType type, TransactionStatus status, BigDecimal prevBalance,
-                       BigDecimal newBalance, String failureReason, Instant creationTime,
+    public Transaction(String transactionId, String accountId, Money amount,
+                       TransactionType type, TransactionStatus status, Money prevBalance,
+                       Money newBalance, String failureReason, Instant creationTime,
                        Instant processedTime) {
         this.transactionId = transactionId;
         this.accountId = accountId;
@@ -57,11 +68,11 @@ public class Transaction {
         this.accountId = accountId;
     }
 
-    public BigDecimal getAmount() {
+    public Money getAmount() {
         return amount;
     }
 
-    public void setAmount(BigDecimal amount) {
+    public void setAmount(Money amount) {
         this.amount = amount;
     }
 
@@ -81,19 +92,19 @@ public class Transaction {
         this.status = status;
     }
 
-    public BigDecimal getPrevBalance() {
+    public Money getPrevBalance() {
         return prevBalance;
     }
 
-    public void setPrevBalance(BigDecimal prevBalance) {
+    public void setPrevBalance(Money prevBalance) {
         this.prevBalance = prevBalance;
     }
 
-    public BigDecimal getNewBalance() {
+    public Money getNewBalance() {
         return newBalance;
     }
 
-    public void setNewBalance(BigDecimal newBalance) {
+    public void setNewBalance(Money newBalance) {
         this.newBalance = newBalance;
     }
 
@@ -121,4 +132,41 @@ public class Transaction {
     public void setProcessedTime(Instant processedTime) {
         this.processedTime = processedTime;
     }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    // COMPLETED and FAILED are final; every other status can still change
+    public boolean isFinished() {
+        return status == TransactionStatus.COMPLETED || status == TransactionStatus.FAILED;
+    }
+
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    public void setEnqueuedNanos(long enqueuedNanos) {
+        this.enqueuedNanos = enqueuedNanos;
+    }
+
+    public Priority getQueuedLane() {
+        return queuedLane;
+    }
+
+    public void setQueuedLane(Priority queuedLane) {
+        this.queuedLane = queuedLane;
+    }
 }
\ No newline at end of file
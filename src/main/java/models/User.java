@@ -1,6 +1,5 @@
 package models;
 
-import java.math.BigDecimal;
 import java.time.Instant;
 
 
@@ -11,14 +10,14 @@ public class User {
 
     private String userId;
     private String username;
-    private BigDecimal balance;
+    private Money balance;
     private Currency currency;
     private Instant createdAt;
     private Instant updatedAt;
 
     public User() {}
 
-    public User(String userId, String username, BigDecimal balance, Currency currency, Instant createdAt, Instant updatedAt) {
+    public User(String userId, String username, Money balance, Currency currency, Instant createdAt, Instant updatedAt) {
         this.userId = userId;
         this.username = username;
         this.balance = balance;
@@ -43,11 +42,11 @@ public class User {
         this.username = username;
     }
 
-    public BigDecimal getBalance() {
+    public Money getBalance() {
         return balance;
     }
 
-    public void setBalance(BigDecimal balance) {
+    public void setBalance(Money balance) {
         this.balance = balance;
     }
 
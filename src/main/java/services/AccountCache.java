@@ -0,0 +1,222 @@
+package services;
+
+import config.AppConfig;
+import models.Money;
+import models.User;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded read-through cache of accounts keyed by user id. Entries are split over
+// independently locked LRU segments to keep lock contention low.
+public class AccountCache {
+    private static final int SEGMENT_COUNT = 16;
+    private static final int GENERATION_STRIPES = 1024;
+
+    public interface Loader {
+        User load(String userId) throws Exception;
+    }
+
+    public interface BulkLoader {
+        Map<String, User> load(List<String> userIds) throws Exception;
+    }
+
+    private final Segment[] segments;
+    private final long ttlMillis;
+    // Bumped on every write so loads that raced with the write are not cached
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public AccountCache() {
+        this(AppConfig.getInt("ACCOUNT_CACHE_MAX_ENTRIES", 10_000),
+                AppConfig.getLong("ACCOUNT_CACHE_TTL_SECONDS", 300));
+    }
+
+    public AccountCache(int maxEntries, long ttlSeconds) {
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        int perSegment = Math.max(1, maxEntries / SEGMENT_COUNT);
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    public User get(String userId, Loader loader) throws Exception {
+        Segment segment = segmentFor(userId);
+        long now = System.currentTimeMillis();
+
+        synchronized (segment) {
+            Entry entry = segment.map.get(userId);
+            if (entry != null && entry.expiresAt > now) {
+                hits.increment();
+                return entry.user;
+            }
+        }
+
+        misses.increment();
+        int stripe = stripeFor(userId);
+        long generation = generations.get(stripe);
+        User user = loader.load(userId);
+
+        if (user != null) {
+            synchronized (segment) {
+                // Only cache what we read if no write to this key happened meanwhile
+                if (generations.get(stripe) == generation) {
+                    segment.map.put(userId, new Entry(user, now + ttlMillis));
+                }
+            }
+        }
+        return user;
+    }
+
+    // Cached accounts for the ids, with every miss loaded by one loader call. Ids without an account
+    // are left out of the result.
+    public Map<String, User> getAll(Collection<String> userIds, BulkLoader loader) throws Exception {
+        Map<String, User> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String userId : userIds) {
+            Segment segment = segmentFor(userId);
+            synchronized (segment) {
+                Entry entry = segment.map.get(userId);
+                if (entry != null && entry.expiresAt > now) {
+                    found.put(userId, entry.user);
+                    continue;
+                }
+            }
+            missing.add(userId);
+        }
+        hits.add(found.size());
+        if (missing.isEmpty()) {
+            return found;
+        }
+
+        misses.add(missing.size());
+        long[] seen = new long[missing.size()];
+        for (int i = 0; i < seen.length; i++) {
+            seen[i] = generations.get(stripeFor(missing.get(i)));
+        }
+        Map<String, User> loaded = loader.load(missing);
+        for (int i = 0; i < seen.length; i++) {
+            String userId = missing.get(i);
+            User user = loaded.get(userId);
+            if (user == null) {
+                continue;
+            }
+            found.put(userId, user);
+            Segment segment = segmentFor(userId);
+            synchronized (segment) {
+                if (generations.get(stripeFor(userId)) == seen[i]) {
+                    segment.map.put(userId, new Entry(user, now + ttlMillis));
+                }
+            }
+        }
+        return found;
+    }
+
+    // Write-through after a committed balance change. Callers may report changes out of commit
+    // order, so the change is only applied when it continues from the cached balance; otherwise
+    // the entry is dropped and the next read loads the stored balance.
+    public void updateBalance(String userId, Money prevBalance, Money newBalance, Instant updatedAt) {
+        Segment segment = segmentFor(userId);
+        synchronized (segment) {
+            generations.incrementAndGet(stripeFor(userId));
+            Entry entry = segment.map.get(userId);
+            if (entry != null && (prevBalance == null || !prevBalance.equals(entry.user.getBalance()))) {
+                segment.map.remove(userId);
+            } else if (entry != null) {
+                // Cached users are shared with readers, so replace rather than mutate
+                User current = entry.user;
+                User updated = new User(current.getUserId(), current.getUsername(), newBalance,
+                        current.getCurrency(), current.getCreatedAt(), updatedAt);
+                segment.map.put(userId, new Entry(updated, entry.expiresAt));
+            }
+        }
+    }
+
+    public void invalidate(String userId) {
+        Segment segment = segmentFor(userId);
+        synchronized (segment) {
+            generations.incrementAndGet(stripeFor(userId));
+            segment.map.remove(userId);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String userId) {
+        return segments[Math.floorMod(spread(userId), SEGMENT_COUNT)];
+    }
+
+    private int stripeFor(String userId) {
+        return Math.floorMod(spread(userId) >>> 4, GENERATION_STRIPES);
+    }
+
+    private static int spread(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<String, Entry> map;
+
+        private Segment(int capacity) {
+            this.map = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    private static final class Entry {
+        private final User user;
+        private final long expiresAt;
+
+        private Entry(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
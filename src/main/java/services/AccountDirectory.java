@@ -0,0 +1,114 @@
+package services;
+
+import config.AppConfig;
+import database.AccountRepository;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every known user id and username, loaded at startup and kept current by createUser and by
+// lookups that find an account in storage. A hit is answered from memory without a query. A miss
+// is not authoritative, since the account may have been created by another instance or directly
+// in the database, so callers confirm it against storage. Ids storage did not have are remembered
+// as missing for a short time, so repeated requests for an unknown id are refused without a
+// query; an account created elsewhere is found once that entry expires.
+public class AccountDirectory {
+    private final Set<String> userIds;
+    private final Map<String, String> usernames;
+    // Id confirmed missing -> time until which that is trusted
+    private final Map<String, Long> missingUntil = new ConcurrentHashMap<>();
+    private final long missTtlMillis;
+    private final int maxMisses;
+    private volatile long nextSweep = 0;
+
+    public AccountDirectory() {
+        this(AppConfig.getInt("ACCOUNT_DIRECTORY_EXPECTED_ACCOUNTS", 1_000_000),
+                AppConfig.getLong("ACCOUNT_DIRECTORY_MISS_TTL_MS", 5000),
+                AppConfig.getInt("ACCOUNT_DIRECTORY_MAX_MISSES", 100_000));
+    }
+
+    public AccountDirectory(int expectedAccounts, long missTtlMillis, int maxMisses) {
+        int expected = Math.max(1024, expectedAccounts);
+        this.userIds = ConcurrentHashMap.newKeySet(expected);
+        this.usernames = new ConcurrentHashMap<>(expected);
+        this.missTtlMillis = Math.max(0, missTtlMillis);
+        this.maxMisses = Math.max(0, maxMisses);
+    }
+
+    // Streams every account from storage
+    public long load(AccountRepository accounts) throws Exception {
+        long start = System.currentTimeMillis();
+        long count = accounts.forEachAccount(this::add);
+        System.out.println("Account directory loaded " + count + " accounts in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return count;
+    }
+
+    // username may be null when only the id is known
+    public void add(String userId, String username) {
+        userIds.add(userId);
+        if (!missingUntil.isEmpty()) {
+            missingUntil.remove(userId);
+        }
+        if (username != null) {
+            usernames.put(username, userId);
+        }
+    }
+
+    // Remembers that storage had no account with this id. Once full, expired entries are swept at
+    // most once per TTL; until there is room again, further misses are not remembered.
+    public void addMissing(String userId) {
+        if (missTtlMillis == 0 || userId == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (missingUntil.size() >= maxMisses) {
+            if (now < nextSweep) {
+                return;
+            }
+            nextSweep = now + missTtlMillis;
+            missingUntil.values().removeIf(until -> until <= now);
+            if (missingUntil.size() >= maxMisses) {
+                return;
+            }
+        }
+        missingUntil.put(userId, now + missTtlMillis);
+        // An account added while storage was being asked must not be hidden by the stale answer
+        if (userIds.contains(userId)) {
+            missingUntil.remove(userId);
+        }
+    }
+
+    // True while storage recently confirmed the id has no account
+    public boolean isKnownMissing(String userId) {
+        if (missingUntil.isEmpty() || userId == null) {
+            return false;
+        }
+        Long until = missingUntil.get(userId);
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis()) {
+            return true;
+        }
+        missingUntil.remove(userId, until);
+        return false;
+    }
+
+    public int missingSize() {
+        return missingUntil.size();
+    }
+
+    public boolean containsUserId(String userId) {
+        return userId != null && userIds.contains(userId);
+    }
+
+    public boolean containsUsername(String username) {
+        return username != null && usernames.containsKey(username);
+    }
+
+    public int size() {
+        return userIds.size();
+    }
+}
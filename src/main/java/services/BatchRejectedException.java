@@ -0,0 +1,21 @@
+package services;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Thrown when items of a bulk request fail validation; nothing from the batch is enqueued
+public class BatchRejectedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final TreeMap<Integer, String> itemErrors;
+
+    public BatchRejectedException(Map<Integer, String> itemErrors) {
+        super("Batch rejected: " + itemErrors.size() + " invalid items");
+        this.itemErrors = new TreeMap<>(itemErrors);
+    }
+
+    // Error message per zero-based item index, in index order
+    public Map<Integer, String> getItemErrors() {
+        return itemErrors;
+    }
+}
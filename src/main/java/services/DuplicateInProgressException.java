@@ -0,0 +1,11 @@
+package services;
+
+// Thrown when a request reuses the idempotency key of an earlier request that is still being
+// accepted and did not settle in time. Its outcome is unknown, so no transaction id can be given.
+public class DuplicateInProgressException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public DuplicateInProgressException(String idempotencyKey) {
+        super("A request with idempotency key " + idempotencyKey + " is still being processed");
+    }
+}
@@ -0,0 +1,276 @@
+package services;
+
+import config.AppConfig;
+import database.IdempotencyRepository;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Two-tier idempotency store: a bounded, expiring in-memory map in front of the
+// idempotency_keys table, so duplicates are caught cheaply and still detected after a restart.
+// A key stays pending until its owner confirms the request was accepted or releases it; a
+// duplicate arriving meanwhile waits for that rather than answering with an id that may never exist.
+public class IdempotencyStore {
+    private static final int PURGE_BATCH_SIZE = 1000;
+
+    private final IdempotencyRepository idempotencyDA;
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final long pendingWaitMillis;
+    private final ConcurrentHashMap<String, Entry> entries;
+    // Insertion order doubles as expiry order because every entry gets the same TTL. Released and
+    // replaced entries stay queued until they reach the head, so the queue is bounded by its own
+    // length, tracked in orderSize since ConcurrentLinkedQueue.size() walks the whole queue.
+    private final ConcurrentLinkedQueue<Entry> order;
+    private final AtomicInteger orderSize = new AtomicInteger();
+    private final ScheduledExecutorService purger;
+
+    public IdempotencyStore(IdempotencyRepository idempotencyDA) {
+        this(idempotencyDA,
+                AppConfig.getLong("IDEMPOTENCY_TTL_SECONDS", TimeUnit.DAYS.toSeconds(1)),
+                AppConfig.getInt("IDEMPOTENCY_MAX_ENTRIES", 100_000),
+                AppConfig.getLong("IDEMPOTENCY_PURGE_INTERVAL_SECONDS", 60),
+                AppConfig.getLong("IDEMPOTENCY_PENDING_WAIT_MS", 5000));
+    }
+
+    // idempotencyDA may be null to keep keys in memory only
+    public IdempotencyStore(IdempotencyRepository idempotencyDA, long ttlSeconds, int maxEntries, long purgeIntervalSeconds,
+                            long pendingWaitMillis) {
+        this.idempotencyDA = idempotencyDA;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.pendingWaitMillis = Math.max(0, pendingWaitMillis);
+        this.entries = new ConcurrentHashMap<>();
+        this.order = new ConcurrentLinkedQueue<>();
+
+        this.purger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "idempotency-purger");
+            t.setDaemon(true);
+            return t;
+        });
+        purger.scheduleWithFixedDelay(this::purgeExpired, purgeIntervalSeconds, purgeIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Atomically claims the key for transactionId. Returns null when the caller now owns the key and
+    // must confirm or release it, otherwise the transaction id recorded by the earlier request. While
+    // the earlier request is still pending this waits for it, and throws DuplicateInProgressException
+    // if it does not settle in time; if it is released, the key is claimed for this request instead.
+    public String reserve(String key, String transactionId) throws Exception {
+        Entry claimed = claim(key, transactionId, System.currentTimeMillis() + pendingWaitMillis);
+        if (!claimed.transactionId.equals(transactionId)) {
+            return claimed.transactionId;
+        }
+        if (idempotencyDA == null) {
+            return null;
+        }
+
+        try {
+            String persisted = idempotencyDA.reserve(key, transactionId, Instant.ofEpochMilli(claimed.expiresAt));
+            if (persisted != null) {
+                replaceWithOriginal(claimed, persisted);
+            }
+            return persisted;
+        } catch (Exception e) {
+            abandon(claimed);
+            throw e;
+        }
+    }
+
+    // reserve for several keys at once, with the table asked in one call. Returns, per key, null when
+    // the caller now owns it and otherwise the earlier transaction id. If any key fails, none is held.
+    public List<String> reserveAll(List<String> keys, List<String> transactionIds) throws Exception {
+        long deadline = System.currentTimeMillis() + pendingWaitMillis;
+        List<String> results = new ArrayList<>(keys.size());
+        List<Entry> claimed = new ArrayList<>();
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                Entry entry = claim(keys.get(i), transactionIds.get(i), deadline);
+                if (entry.transactionId.equals(transactionIds.get(i))) {
+                    claimed.add(entry);
+                    results.add(null);
+                } else {
+                    results.add(entry.transactionId);
+                }
+            }
+            if (idempotencyDA == null || claimed.isEmpty()) {
+                return results;
+            }
+
+            Map<String, String> owned = new LinkedHashMap<>();
+            for (Entry entry : claimed) {
+                owned.put(entry.key, entry.transactionId);
+            }
+            Map<String, String> persisted = idempotencyDA.reserveAll(owned,
+                    Instant.ofEpochMilli(claimed.get(claimed.size() - 1).expiresAt));
+            for (Entry entry : claimed) {
+                String original = persisted.get(entry.key);
+                if (original != null) {
+                    replaceWithOriginal(entry, original);
+                }
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                if (results.get(i) == null) {
+                    results.set(i, persisted.get(keys.get(i)));
+                }
+            }
+            return results;
+        } catch (Exception e) {
+            for (Entry entry : claimed) {
+                abandon(entry);
+            }
+            throw e;
+        }
+    }
+
+    // Claims the key in memory. Returns the new pending entry when the caller now owns it, otherwise
+    // the settled entry of the earlier request, waiting while that is still pending.
+    private Entry claim(String key, String transactionId, long deadline) throws Exception {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Entry candidate = new Entry(key, transactionId, now + ttlMillis);
+
+            Entry winner = entries.compute(key, (k, existing) ->
+                    existing != null && existing.expiresAt > now ? existing : candidate);
+            if (winner == candidate) {
+                track(candidate);
+                return candidate;
+            }
+            if (winner.settled.isDone()) {
+                return winner;
+            }
+            awaitSettled(winner, deadline - now);
+        }
+    }
+
+    // Seen before a restart (or by another node): remember the original answer
+    private void replaceWithOriginal(Entry claimed, String persisted) {
+        Entry original = new Entry(claimed.key, persisted, claimed.expiresAt);
+        original.settled.complete(null);
+        if (entries.replace(claimed.key, claimed, original)) {
+            track(original);
+        }
+        claimed.settled.complete(null);
+    }
+
+    private void abandon(Entry claimed) {
+        entries.remove(claimed.key, claimed);
+        claimed.settled.complete(null);
+    }
+
+    // The request the key was reserved for was accepted, so duplicates may now be given its id
+    public void confirm(String key, String transactionId) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.transactionId.equals(transactionId)) {
+            entry.settled.complete(null);
+        }
+    }
+
+    // Gives the key back when the request it was reserved for was not accepted
+    public void release(String key, String transactionId) {
+        Entry[] released = new Entry[1];
+        entries.computeIfPresent(key, (k, existing) -> {
+            if (!existing.transactionId.equals(transactionId)) {
+                return existing;
+            }
+            released[0] = existing;
+            return null;
+        });
+        if (released[0] != null) {
+            released[0].settled.complete(null);
+        }
+        if (idempotencyDA != null) {
+            try {
+                idempotencyDA.release(key, transactionId);
+            } catch (Exception e) {
+                System.err.println("Error releasing idempotency key " + key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void awaitSettled(Entry pending, long waitMillis) throws Exception {
+        try {
+            pending.settled.get(Math.max(0, waitMillis), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new DuplicateInProgressException(pending.key);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void shutdown() {
+        purger.shutdownNow();
+    }
+
+    private void track(Entry entry) {
+        order.add(entry);
+        orderSize.incrementAndGet();
+        evictOverflow();
+    }
+
+    // Drops the oldest in-memory entries once over capacity; the table still remembers them.
+    // Entries that were already released or replaced are skipped.
+    private void evictOverflow() {
+        while (orderSize.get() > maxEntries) {
+            Entry oldest = order.poll();
+            if (oldest == null) {
+                return;
+            }
+            orderSize.decrementAndGet();
+            if (entries.remove(oldest.key, oldest)) {
+                // A pending entry dropped here cannot be confirmed; waiters look the key up again
+                oldest.settled.complete(null);
+            }
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Entry head;
+        while ((head = order.peek()) != null && head.expiresAt <= now) {
+            if (order.remove(head)) {
+                orderSize.decrementAndGet();
+                if (entries.remove(head.key, head)) {
+                    head.settled.complete(null);
+                }
+            }
+        }
+
+        if (idempotencyDA != null) {
+            try {
+                int deleted;
+                do {
+                    deleted = idempotencyDA.deleteExpired(Instant.ofEpochMilli(now), PURGE_BATCH_SIZE);
+                } while (deleted == PURGE_BATCH_SIZE);
+            } catch (Exception e) {
+                System.err.println("Error purging idempotency keys: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final String transactionId;
+        private final long expiresAt;
+        // Done once the owner confirmed or released the key
+        private final CompletableFuture<Void> settled = new CompletableFuture<>();
+
+        private Entry(String key, String transactionId, long expiresAt) {
+            this.key = key;
+            this.transactionId = transactionId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
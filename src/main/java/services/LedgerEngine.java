@@ -0,0 +1,242 @@
+package services;
+
+import config.AppConfig;
+import database.AccountRepository;
+import database.TransactionRepository;
+import models.Money;
+import models.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// In-memory ledger. Balances are split over partitions by account and each partition has a single
+// thread that is the only writer of its balances, so the check-and-apply needs no locks and no
+// database round trip. Applied transactions are written to the users/transactions tables in the
+// background by the batch writer; their futures complete once that write is committed, so the
+// queue only checkpoints them in the journal when they are durable. On startup the users table is
+// the snapshot and unfinished journal entries are replayed on top of it.
+public class LedgerEngine {
+    private static final int DRAIN_MAX = 256;
+
+    private final TransactionRepository transactions;
+    private final List<Partition> partitions;
+    private final ScheduledExecutorService retryExecutor;
+    private final long persistRetryMillis;
+    private volatile boolean isRunning = true;
+    // Results of writes waiting for another attempt, completed on shutdown if still waiting
+    private final Set<CompletableFuture<Void>> retrying = ConcurrentHashMap.newKeySet();
+
+    public LedgerEngine(TransactionRepository transactions) {
+        this(transactions,
+                AppConfig.getInt("LEDGER_PARTITIONS", Runtime.getRuntime().availableProcessors()),
+                AppConfig.getLong("LEDGER_PERSIST_RETRY_MS", 1000));
+    }
+
+    public LedgerEngine(TransactionRepository transactions, int partitionCount, long persistRetryMillis) {
+        this.transactions = transactions;
+        this.persistRetryMillis = Math.max(1, persistRetryMillis);
+
+        int count = Math.max(1, partitionCount);
+        this.partitions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Partition partition = new Partition();
+            Thread thread = new Thread(() -> run(partition), "ledger-partition-" + i);
+            thread.setDaemon(true);
+            partition.thread = thread;
+            partitions.add(partition);
+            thread.start();
+        }
+
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ledger-persist-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Restores every account's balance from storage; must run before transactions are submitted
+    public long load(AccountRepository accounts) throws Exception {
+        long start = System.currentTimeMillis();
+        long count = accounts.forEachBalance((userId, balance) -> partitionFor(userId).balances.put(userId, balance));
+        System.out.println("Ledger engine loaded " + count + " accounts into " + partitions.size()
+                + " partitions in " + (System.currentTimeMillis() - start) + " ms");
+        return count;
+    }
+
+    // Makes a newly created account known to its partition
+    public CompletableFuture<Void> register(String userId, Money balance) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Partition partition = partitionFor(userId);
+        submit(partition, () -> {
+            partition.balances.putIfAbsent(userId, balance);
+            result.complete(null);
+        }, result);
+        return result;
+    }
+
+    // Checks and applies the transaction on its partition's thread. Fails with the reason when it
+    // is declined; otherwise completes once the change has been written to the database.
+    public CompletableFuture<Void> submit(Transaction transaction) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Partition partition = partitionFor(transaction.getAccountId());
+        submit(partition, () -> apply(partition, transaction, result), result);
+        return result;
+    }
+
+    // Latest applied balance, or null when the account is unknown. Readers never block the writer.
+    public Money getBalance(String userId) {
+        return partitionFor(userId).balances.get(userId);
+    }
+
+    public int getAccountCount() {
+        int count = 0;
+        for (Partition partition : partitions) {
+            count += partition.balances.size();
+        }
+        return count;
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    private void submit(Partition partition, Runnable command, CompletableFuture<Void> result) {
+        if (!isRunning) {
+            result.completeExceptionally(new IllegalStateException("Ledger engine is shut down"));
+            return;
+        }
+        partition.commands.add(command);
+    }
+
+    private void run(Partition partition) {
+        List<Runnable> batch = new ArrayList<>(DRAIN_MAX);
+        while (isRunning || !partition.commands.isEmpty()) {
+            try {
+                Runnable first = partition.commands.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                partition.commands.drainTo(batch, DRAIN_MAX - 1);
+                for (Runnable command : batch) {
+                    command.run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                System.err.println("Error in ledger partition: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void apply(Partition partition, Transaction transaction, CompletableFuture<Void> result) {
+        try {
+            Money balance = partition.balances.get(transaction.getAccountId());
+            if (balance == null) {
+                throw new Exception("User not found with ID: " + transaction.getAccountId());
+            }
+
+            Money amount = transaction.getAmount();
+            Money newBalance = transaction.getType() == Transaction.TransactionType.DEPOSIT ?
+                    balance.add(amount) : balance.subtract(amount);
+            if (newBalance.isNegative()) {
+                throw new Exception("Insufficient balance during processing");
+            }
+
+            partition.balances.put(transaction.getAccountId(), newBalance);
+            transaction.setPrevBalance(balance);
+            transaction.setNewBalance(newBalance);
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        persist(transaction, result);
+    }
+
+    // The balance is already applied in memory, so a failed write is retried until it lands rather
+    // than reported as a failed transaction. Until then the journal keeps it for replay.
+    private void persist(Transaction transaction, CompletableFuture<Void> result) {
+        transactions.submitRecord(transaction).whenComplete((ignored, e) -> {
+            if (e == null) {
+                result.complete(null);
+                return;
+            }
+            System.err.println("Error persisting transaction " + transaction.getTransactionId()
+                    + ", retrying in " + persistRetryMillis + " ms: " + e.getMessage());
+            retrying.add(result);
+            try {
+                if (!isRunning) {
+                    throw new RejectedExecutionException("Ledger engine is shut down");
+                }
+                retryExecutor.schedule(() -> retryPersist(transaction, result), persistRetryMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                abandon(transaction, result);
+            }
+        });
+    }
+
+    private void retryPersist(Transaction transaction, CompletableFuture<Void> result) {
+        retrying.remove(result);
+        try {
+            // The failed write may have committed before the error was reported
+            if (transactions.findById(transaction.getTransactionId(), transaction.getAccountId()) != null) {
+                result.complete(null);
+                return;
+            }
+        } catch (Exception e) {
+            System.err.println("Error checking transaction " + transaction.getTransactionId() + ": " + e.getMessage());
+        }
+        persist(transaction, result);
+    }
+
+    // Releases whoever waits on the write without a final outcome; the journal entry stays for replay
+    private void abandon(Transaction transaction, CompletableFuture<Void> result) {
+        retrying.remove(result);
+        result.completeExceptionally(new UnpersistedTransactionException("Ledger engine stopped before transaction "
+                + transaction.getTransactionId() + " was written; it is replayed from the journal on the next start"));
+    }
+
+    private Partition partitionFor(String accountId) {
+        int h = accountId == null ? 0 : accountId.hashCode();
+        h ^= (h >>> 16);
+        return partitions.get(Math.floorMod(h, partitions.size()));
+    }
+
+    // Stops taking work once the partitions have drained; writes still being retried stay in the journal
+    public void shutdown() {
+        isRunning = false;
+        try {
+            for (Partition partition : partitions) {
+                partition.thread.join(TimeUnit.SECONDS.toMillis(10));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        retryExecutor.shutdownNow();
+        for (CompletableFuture<Void> result : retrying) {
+            result.completeExceptionally(new UnpersistedTransactionException(
+                    "Ledger engine stopped before the transaction was written; it is replayed from the journal on the next start"));
+        }
+        retrying.clear();
+    }
+
+    private static final class Partition {
+        // Written only by the partition thread; concurrent so balance reads need no hand-off
+        private final Map<String, Money> balances = new ConcurrentHashMap<>();
+        private final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<>();
+        private Thread thread;
+    }
+}
@@ -1,152 +1,569 @@
 package services;
 
-import database.TransactionDataAccess;
+import config.AppConfig;
+import database.AccountRepository;
+import database.IdempotencyDataAccess;
+import database.IdempotencyRepository;
+import database.MySqlTransactionRepository;
+import database.TransactionRepository;
 import database.UserDataAccess;
+import metrics.Metrics;
+import models.Money;
+import models.PaymentRequest;
 import models.Transaction;
 import models.User;
+import transaction.CompletionRegistry;
+import transaction.QueueRejectedException;
 import transaction.TransactionQueue;
 
-import java.math.BigDecimal;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 public class PaymentService {
-    private final UserDataAccess userDA;
-    private final TransactionDataAccess transactionDA;
+    public enum LedgerMode {
+        // Every posting checks and changes the balance in the database
+        DATABASE,
+        // Balances are checked and changed in memory and written to the database in the background
+        MEMORY;
+
+        public static LedgerMode fromConfig() {
+            return valueOf(AppConfig.getString("LEDGER_ENGINE", "DATABASE").toUpperCase());
+        }
+    }
+
+    private final AccountRepository accounts;
+    private final TransactionRepository transactions;
     private final TransactionQueue queue;
-    private final ConcurrentHashMap<String, String> idCache;
+    private final CompletionRegistry completions;
+    private final IdempotencyStore idempotencyStore;
+    private final AccountCache accountCache;
+    // Null when disabled, in which case existence checks go to the database
+    private final AccountDirectory accountDirectory;
+    private final LedgerMode ledgerMode;
+    // Only set in MEMORY mode
+    private final LedgerEngine ledgerEngine;
 
-    public PaymentService() {
-        this.userDA = new UserDataAccess();
-        this.transactionDA = new TransactionDataAccess();
+    public PaymentService() throws Exception {
+        this(LedgerMode.fromConfig());
+    }
+
+    // Backed by MySQL through DBManager
+    public PaymentService(LedgerMode ledgerMode) throws Exception {
+        this(new UserDataAccess(), new MySqlTransactionRepository(), new IdempotencyDataAccess(), ledgerMode);
+    }
+
+    // idempotencyRepository may be null, in which case keys are only remembered in memory
+    public PaymentService(AccountRepository accounts, TransactionRepository transactions,
+                          IdempotencyRepository idempotencyRepository, LedgerMode ledgerMode) throws Exception {
+        this.accounts = accounts;
+        this.transactions = transactions;
         this.queue = TransactionQueue.getInstance();
-        this.idCache = new ConcurrentHashMap<>();
+        this.completions = new CompletionRegistry();
+        this.idempotencyStore = new IdempotencyStore(idempotencyRepository);
+        this.accountCache = new AccountCache();
+        if (AppConfig.getBoolean("ACCOUNT_DIRECTORY_ENABLED", true)) {
+            this.accountDirectory = new AccountDirectory();
+            accountDirectory.load(accounts);
+        } else {
+            this.accountDirectory = null;
+        }
+        this.ledgerMode = ledgerMode;
+        if (ledgerMode == LedgerMode.MEMORY) {
+            this.ledgerEngine = new LedgerEngine(transactions);
+            ledgerEngine.load(accounts);
+        } else {
+            this.ledgerEngine = null;
+        }
     }
 
-    public void createUser(String userId, String username, BigDecimal initialBalance,
-                           User.Currency currency) throws Exception {
+    public void createUser(String userId, String username, Money initialBalance) throws Exception {
         validateUserId(userId);
         validateUsername(username);
         validateAmount(initialBalance);
-
-        userDA.createUser(userId, username, initialBalance, currency);
+        if (accountDirectory != null && accountDirectory.containsUserId(userId)) {
+            throw new Exception("User already exists: " + userId);
+        }
+        if (accountDirectory != null && accountDirectory.containsUsername(username)) {
+            throw new Exception("Username already taken: " + username);
+        }
+        accounts.createUser(userId, username, initialBalance);
+        if (accountDirectory != null) {
+            accountDirectory.add(userId, username);
+        }
+        if (ledgerEngine != null) {
+            ledgerEngine.register(userId, initialBalance).get();
+        }
     }
 
     public User getUserById(String userId) throws Exception {
         try {
             validateUserId(userId);
-            return userDA.findByUserId(userId);
+            if (accountDirectory != null && accountDirectory.isKnownMissing(userId)) {
+                return null;
+            }
+            User user = accountCache.get(userId, accounts::findByUserId);
+            return found(userId, user);
         }
         catch (Exception e) {
             throw new Exception("Error fetching user: " + e.getMessage());
         }
     }
 
+    // Accounts for the ids that exist, with every one not cached read in a single storage call
+    public Map<String, User> getUsersById(Collection<String> userIds) throws Exception {
+        try {
+            List<String> lookup = new ArrayList<>(userIds.size());
+            for (String userId : userIds) {
+                validateUserId(userId);
+                if (accountDirectory == null || !accountDirectory.isKnownMissing(userId)) {
+                    lookup.add(userId);
+                }
+            }
+            Map<String, User> users = accountCache.getAll(lookup, accounts::findByUserIds);
+            for (String userId : lookup) {
+                User user = found(userId, users.get(userId));
+                if (user != null) {
+                    users.put(userId, user);
+                }
+            }
+            return users;
+        }
+        catch (Exception e) {
+            throw new Exception("Error fetching users: " + e.getMessage());
+        }
+    }
+
+    // Records the lookup's outcome in the directory and applies the ledger engine's balance
+    private User found(String userId, User user) {
+        if (accountDirectory != null) {
+            if (user == null) {
+                accountDirectory.addMissing(userId);
+            } else if (!accountDirectory.containsUserId(userId)) {
+                accountDirectory.add(userId, user.getUsername());
+            }
+        }
+        if (user != null && ledgerEngine != null) {
+            // The engine holds the latest balance; the stored one may lag behind it
+            Money balance = ledgerEngine.getBalance(userId);
+            if (balance != null) {
+                user = new User(user.getUserId(), user.getUsername(), balance, user.getCurrency(),
+                        user.getCreatedAt(), user.getUpdatedAt());
+            }
+        }
+        return user;
+    }
+
     public User getUserByUsername(String username) throws Exception {
         try {
             validateUsername(username);
-            return userDA.findByUsername(username);
+            User user = accounts.findByUsername(username);
+            if (user != null && accountDirectory != null) {
+                accountDirectory.add(user.getUserId(), username);
+            }
+            return user;
         }
         catch (Exception e) {
             throw new Exception("Error fetching user: " + e.getMessage());
         }
     }
 
-    public String processDeposit(String userId, BigDecimal amount, String idKey) throws Exception {
+    public boolean accountExists(String userId) throws Exception {
+        validateUserId(userId);
+        // A hit is answered from memory, and so is a miss storage confirmed a moment ago; any other
+        // miss may be an account created elsewhere
+        if (accountDirectory != null && accountDirectory.containsUserId(userId)) {
+            return true;
+        }
+        if (accountDirectory != null && accountDirectory.isKnownMissing(userId)) {
+            return false;
+        }
+        boolean exists = accounts.userExists(userId);
+        if (accountDirectory != null) {
+            if (exists) {
+                accountDirectory.add(userId, null);
+            } else {
+                accountDirectory.addMissing(userId);
+            }
+        }
+        return exists;
+    }
+
+    // Returns the recent outcome or stored transaction, a PENDING placeholder while it is still
+    // queued, or null
+    public Transaction getTransaction(String transactionId) throws Exception {
         try {
-            if(null == getUserById(userId))
+            if (transactionId == null || transactionId.trim().isEmpty()) {
+                throw new Exception("Transaction ID cannot be empty");
+            }
+            Transaction transaction = completions.getRecent(transactionId);
+            if (transaction == null) {
+                transaction = transactions.findById(transactionId);
+            }
+            if (transaction == null) {
+                if (queue.isPending(transactionId)) {
+                    transaction = new Transaction();
+                    transaction.setTransactionId(transactionId);
+                    transaction.setStatus(Transaction.TransactionStatus.PENDING);
+                } else {
+                    // Outcomes are published before the checkpoint, so one that finished meanwhile is here
+                    transaction = completions.getRecent(transactionId);
+                }
+            }
+            return transaction;
+        }
+        catch (Exception e) {
+            throw new Exception("Error fetching transaction: " + e.getMessage());
+        }
+    }
+
+    // Whether the transaction's outcome is already stored, so replaying it from the journal would repeat it
+    public boolean isRecorded(Transaction transaction) throws Exception {
+        return transactions.findById(transaction.getTransactionId(), transaction.getAccountId()) != null;
+    }
+
+    // Whether an attempt whose outcome was lost had committed. If so the transaction takes the stored
+    // balances and the cached account is brought up to date, as a posting that reported success would.
+    // Failed rows are only written once retrying stops, so a stored row is the posting itself.
+    public boolean confirmCommitted(Transaction transaction) throws Exception {
+        Transaction stored = transactions.findById(transaction.getTransactionId(), transaction.getAccountId());
+        if (stored == null) {
+            return false;
+        }
+        transaction.setStatus(Transaction.TransactionStatus.COMPLETED);
+        transaction.setFailureReason(null);
+        transaction.setPrevBalance(stored.getPrevBalance());
+        transaction.setNewBalance(stored.getNewBalance());
+        transaction.setProcessedTime(stored.getProcessedTime());
+        accountCache.updateBalance(transaction.getAccountId(), stored.getPrevBalance(), stored.getNewBalance(),
+                stored.getProcessedTime());
+        return true;
+    }
+
+    // Streams one page of the account's history, newest first, to handler
+    public void getTransactionHistory(String userId, Instant afterTime, String afterId, int limit,
+                                      TransactionRepository.RowHandler handler) throws Exception {
+        validateUserId(userId);
+        transactions.findByAccount(userId, afterTime, afterId, limit, handler);
+    }
+
+    // Amounts are in minor units of the account's currency
+    public String processDeposit(String userId, long amountMinor, String idKey) throws Exception {
+        return processDeposit(userId, amountMinor, idKey, Transaction.Priority.INTERACTIVE);
+    }
+
+    public String processDeposit(String userId, long amountMinor, String idKey, Transaction.Priority priority) throws Exception {
+        long start = System.nanoTime();
+        try {
+            User user = getUserById(userId);
+            if(null == user)
                 throw new Exception("User does not exist in DB");
+            Money amount = Money.ofMinor(amountMinor, user.getCurrency());
             validateTransaction(userId, amount, idKey);
+            Metrics.VALIDATION.recordSince(start);
 
-            if (idCache.containsKey(idKey)) {
-                String existingTxId = idCache.get(idKey);
+            String transactionId = UUID.randomUUID().toString();
+            String existingTxId = idempotencyStore.reserve(idKey, transactionId);
+            if (existingTxId != null) {
                 System.out.println("Duplicate request detected: " + idKey);
                 return existingTxId;
             }
 
-            getUserById(userId);
-
-            String transactionId = UUID.randomUUID().toString();
-            Transaction transaction = createTransaction(transactionId, userId, amount, Transaction.TransactionType.DEPOSIT, idKey);
-
-            queue.enqueue(transaction);
-            idCache.put(idKey, transactionId);
+            try {
+                Transaction transaction = createTransaction(transactionId, userId, amount, Transaction.TransactionType.DEPOSIT, priority);
+                queue.enqueue(transaction);
+            }
+            catch (Exception e) {
+                idempotencyStore.release(idKey, transactionId);
+                throw e;
+            }
+            idempotencyStore.confirm(idKey, transactionId);
 
             System.out.println("Enqueued deposit transaction: " + transactionId);
             return transactionId;
         }
+        catch (QueueRejectedException | DuplicateInProgressException e) {
+            throw e;
+        }
         catch (Exception e) {
             throw new Exception("Error validating transaction: " + e.getMessage());
         }
 
     }
 
-    public String processWithdrawal(String userId, BigDecimal amount, String idKey) throws Exception {
+    public String processWithdrawal(String userId, long amountMinor, String idKey) throws Exception {
+        return processWithdrawal(userId, amountMinor, idKey, Transaction.Priority.INTERACTIVE);
+    }
+
+    public String processWithdrawal(String userId, long amountMinor, String idKey, Transaction.Priority priority) throws Exception {
+        long start = System.nanoTime();
         try {
-            if(null == getUserById(userId))
+            User user = getUserById(userId);
+            if(null == user)
                 throw new Exception("User does not exist in DB");
+            Money amount = Money.ofMinor(amountMinor, user.getCurrency());
             validateTransaction(userId, amount, idKey);
+            Metrics.VALIDATION.recordSince(start);
 
-            if (idCache.containsKey(idKey)) {
-                String existingTxId = idCache.get(idKey);
+            String transactionId = UUID.randomUUID().toString();
+            String existingTxId = idempotencyStore.reserve(idKey, transactionId);
+            if (existingTxId != null) {
                 System.out.println("Duplicate request detected: " + idKey);
                 return existingTxId;
             }
 
-            User user = getUserById(userId);
-            if (user.getBalance().compareTo(amount) < 0) {
-                throw new Exception("Insufficient funds for withdrawal");
-            }
-
-            String transactionId = UUID.randomUUID().toString();
-            Transaction transaction = createTransaction(transactionId, userId, amount, Transaction.TransactionType.WITHDRAW, idKey);
+            try {
+                // Cached balance is only a fast pre-check; the posting enforces it atomically
+                if (user.getBalance().compareTo(amount) < 0) {
+                    throw new Exception("Insufficient funds for withdrawal");
+                }
 
-            queue.enqueue(transaction);
-            idCache.put(idKey, transactionId);
+                Transaction transaction = createTransaction(transactionId, userId, amount, Transaction.TransactionType.WITHDRAW, priority);
+                queue.enqueue(transaction);
+            }
+            catch (Exception e) {
+                idempotencyStore.release(idKey, transactionId);
+                throw e;
+            }
+            idempotencyStore.confirm(idKey, transactionId);
 
             System.out.println("Enqueued withdrawal transaction: " + transactionId);
             return transactionId;
         }
+        catch (QueueRejectedException | DuplicateInProgressException e) {
+            throw e;
+        }
         catch (Exception e) {
             throw new Exception("Error validating transaction: " + e.getMessage());
         }
     }
 
-    public void executeTransaction(Transaction transaction) throws Exception {
-        User user = getUserById(transaction.getAccountId());
-        transaction.setPrevBalance(user.getBalance());
+    // Validates every item first and enqueues the batch as one unit, so either all new items are
+    // accepted or none are. Returns one transaction id per item, in order; items whose idempotency
+    // key was seen before get the earlier transaction id and are not enqueued again.
+    // Items without a priority go to the BULK lane.
+    public List<String> processBatch(List<PaymentRequest> requests) throws Exception {
+        long start = System.nanoTime();
+        List<Money> amounts = validateBatch(requests);
+        Metrics.VALIDATION.recordSince(start);
 
-        BigDecimal newBalance;
-        if (transaction.getType() == Transaction.TransactionType.DEPOSIT) {
-            newBalance = user.getBalance().add(transaction.getAmount());
+        // A key repeated within the batch shares the transaction of its first item
+        Map<String, String> idsByKey = new LinkedHashMap<>();
+        for (PaymentRequest request : requests) {
+            idsByKey.computeIfAbsent(request.getIdempotencyKey(), key -> UUID.randomUUID().toString());
         }
-        else {
-            if (user.getBalance().compareTo(transaction.getAmount()) < 0) {
-                throw new Exception("Insufficient balance during processing");
+        List<String> keys = new ArrayList<>(idsByKey.keySet());
+        List<String> reserved = new ArrayList<>();
+
+        List<String> transactionIds = new ArrayList<>(requests.size());
+        List<Transaction> accepted = new ArrayList<>(requests.size());
+        try {
+            // Every key is claimed at once, so the table is asked in one round trip rather than per item
+            List<String> existing = idempotencyStore.reserveAll(keys, new ArrayList<>(idsByKey.values()));
+            for (int i = 0; i < keys.size(); i++) {
+                if (existing.get(i) != null) {
+                    idsByKey.put(keys.get(i), existing.get(i));
+                } else {
+                    reserved.add(keys.get(i));
+                }
+            }
+            Set<String> owned = new HashSet<>(reserved);
+            for (int i = 0; i < requests.size(); i++) {
+                PaymentRequest request = requests.get(i);
+                String transactionId = idsByKey.get(request.getIdempotencyKey());
+                transactionIds.add(transactionId);
+                if (owned.remove(request.getIdempotencyKey())) {
+                    accepted.add(createTransaction(transactionId, request.getUserId(), amounts.get(i), request.getType(),
+                            request.getPriority() != null ? request.getPriority() : Transaction.Priority.BULK));
+                }
+            }
+            if (!accepted.isEmpty()) {
+                queue.enqueueAll(accepted);
+            }
+        }
+        catch (Exception e) {
+            for (String key : reserved) {
+                idempotencyStore.release(key, idsByKey.get(key));
+            }
+            if (e instanceof QueueRejectedException || e instanceof DuplicateInProgressException) {
+                throw e;
+            }
+            throw new Exception("Error processing batch: " + e.getMessage());
+        }
+        for (String key : reserved) {
+            idempotencyStore.confirm(key, idsByKey.get(key));
+        }
+
+        System.out.println("Enqueued batch of " + accepted.size() + " transactions ("
+                + (requests.size() - accepted.size()) + " duplicates)");
+        return transactionIds;
+    }
+
+    // One pass over the batch: field checks, account existence, and withdrawals checked in order
+    // against a running balance per account. Returns each item's amount in its account's currency.
+    private List<Money> validateBatch(List<PaymentRequest> requests) throws Exception {
+        Map<Integer, String> errors = new HashMap<>();
+        Map<String, Money> balances = new HashMap<>();
+        List<Money> amounts = new ArrayList<>(requests.size());
+
+        // Every account the batch touches, read up front in one call rather than one query each
+        Set<String> userIds = new HashSet<>();
+        for (PaymentRequest request : requests) {
+            if (request.getUserId() != null && !request.getUserId().trim().isEmpty()) {
+                userIds.add(request.getUserId());
+            }
+        }
+        Map<String, User> users = getUsersById(userIds);
+
+        for (int i = 0; i < requests.size(); i++) {
+            PaymentRequest request = requests.get(i);
+            try {
+                if (request.getType() == null) {
+                    throw new Exception("Type must be DEPOSIT or WITHDRAW");
+                }
+                validateUserId(request.getUserId());
+
+                Money balance = balances.get(request.getUserId());
+                if (balance == null) {
+                    User user = users.get(request.getUserId());
+                    if (user == null) {
+                        throw new Exception("User does not exist in DB");
+                    }
+                    balance = user.getBalance();
+                }
+                Money amount = Money.ofMinor(request.getAmountMinor(), balance.getCurrency());
+                validateTransaction(request.getUserId(), amount, request.getIdempotencyKey());
+
+                if (request.getType() == Transaction.TransactionType.WITHDRAW) {
+                    if (balance.compareTo(amount) < 0) {
+                        throw new Exception("Insufficient funds for withdrawal");
+                    }
+                    balance = balance.subtract(amount);
+                } else {
+                    balance = balance.add(amount);
+                }
+                balances.put(request.getUserId(), balance);
+                amounts.add(amount);
+            }
+            catch (Exception e) {
+                errors.put(i, e.getMessage());
+                amounts.add(null);
             }
-            newBalance = user.getBalance().subtract(transaction.getAmount());
         }
 
-        userDA.updateBalance(user.getUserId(), newBalance);
-        transaction.setNewBalance(newBalance);
+        if (!errors.isEmpty()) {
+            throw new BatchRejectedException(errors);
+        }
+        return amounts;
+    }
+
+    public void executeTransaction(Transaction transaction) throws Exception {
+        try {
+            submitTransaction(transaction).get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw new Exception("Error executing transaction: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Hands the posting to the transaction store without waiting, so postings submitted together can
+    // share one commit. The future fails with the reason when the transaction is declined.
+    public CompletableFuture<Void> submitTransaction(Transaction transaction) {
+        long start = System.nanoTime();
+        // The balance check, balance change and transaction row are applied atomically by the posting
         transaction.setStatus(Transaction.TransactionStatus.COMPLETED);
         transaction.setProcessedTime(Instant.now());
-        transactionDA.insertTransaction(transaction);
+
+        if (ledgerEngine != null) {
+            return ledgerEngine.submit(transaction)
+                    .whenComplete((ignored, e) -> Metrics.EXECUTE.recordSince(start));
+        }
+
+        return transactions.submitPosting(transaction)
+                .thenAccept(posted -> {
+                    if (!posted) {
+                        if (transaction.getType() == Transaction.TransactionType.WITHDRAW) {
+                            throw new CompletionException(new Exception("Insufficient balance during processing"));
+                        }
+                        throw new CompletionException(new Exception("User not found with ID: " + transaction.getAccountId()));
+                    }
+                    accountCache.updateBalance(transaction.getAccountId(), transaction.getPrevBalance(),
+                            transaction.getNewBalance(), transaction.getProcessedTime());
+                })
+                .whenComplete((ignored, e) -> Metrics.EXECUTE.recordSince(start));
+    }
+
+    // The transaction is done with, so its account's postings need not wait on its retry
+    public void releaseAccount(Transaction transaction) {
+        transactions.releaseAccount(transaction);
+    }
+
+    // Stores a transaction that finally failed, with its reason and attempt count, without touching the balance
+    public CompletableFuture<Boolean> recordFailure(Transaction transaction) {
+        return transactions.submitFailed(transaction);
+    }
+
+    public AccountCache getAccountCache() {
+        return accountCache;
+    }
+
+    public AccountDirectory getAccountDirectory() {
+        return accountDirectory;
+    }
+
+    public LedgerMode getLedgerMode() {
+        return ledgerMode;
+    }
+
+    public LedgerEngine getLedgerEngine() {
+        return ledgerEngine;
+    }
+
+    public CompletionRegistry getCompletions() {
+        return completions;
+    }
+
+    public TransactionQueue getQueue() {
+        return queue;
+    }
+
+    public void shutdown() {
+        queue.shutdown();
+        if (ledgerEngine != null) {
+            ledgerEngine.shutdown();
+        }
+        transactions.shutdown();
+        idempotencyStore.shutdown();
     }
 
-    private Transaction createTransaction(String transactionId, String accountId, BigDecimal amount, Transaction.TransactionType type, String idempotencyKey) {
+    // A null priority means NORMAL
+    private Transaction createTransaction(String transactionId, String accountId, Money amount,
+                                          Transaction.TransactionType type, Transaction.Priority priority) {
         Transaction transaction = new Transaction();
         transaction.setTransactionId(transactionId);
         transaction.setAccountId(accountId);
         transaction.setAmount(amount);
         transaction.setType(type);
         transaction.setStatus(Transaction.TransactionStatus.PENDING);
+        transaction.setPriority(priority != null ? priority : Transaction.Priority.NORMAL);
         transaction.setCreationTime(Instant.now());
         return transaction;
     }
 
-    private void validateTransaction(String userId, BigDecimal amount, String idKey) throws Exception {
+    private void validateTransaction(String userId, Money amount, String idKey) throws Exception {
         validateUserId(userId);
         validateAmount(amount);
 
@@ -167,8 +584,8 @@ public class PaymentService {
         }
     }
 
-    private void validateAmount(BigDecimal amount) throws Exception {
-        if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
+    private void validateAmount(Money amount) throws Exception {
+        if (amount == null || !amount.isPositive()) {
             throw new Exception("Amount must be positive");
         }
     }
@@ -0,0 +1,12 @@
+package services;
+
+// Thrown when the ledger engine stops before a transaction it already applied in memory was
+// written. The outcome is not final: the journal still holds the transaction and replays it on
+// the next start, so it must be neither reported as failed nor checkpointed.
+public class UnpersistedTransactionException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public UnpersistedTransactionException(String message) {
+        super(message);
+    }
+}
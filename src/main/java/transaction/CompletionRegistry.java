@@ -0,0 +1,149 @@
+package transaction;
+
+import config.AppConfig;
+import models.Transaction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+// Outcomes of finished transactions, pushed to whoever is waiting for them. Long-poll callers wait
+// on a future per transaction id and stream subscribers get every outcome for their account.
+// Recent outcomes are kept so a caller that starts waiting just after completion is still answered.
+public class CompletionRegistry {
+
+    public interface Listener {
+        // Called on the processing thread, so implementations must hand off any slow work
+        void onCompletion(Transaction transaction);
+    }
+
+    private final Map<String, Set<CompletableFuture<Transaction>>> waiters = new ConcurrentHashMap<>();
+    private final Map<String, Set<Listener>> subscribers = new ConcurrentHashMap<>();
+    private final Map<String, Transaction> recent;
+
+    public CompletionRegistry() {
+        this(AppConfig.getInt("COMPLETION_RETAINED_OUTCOMES", 100_000));
+    }
+
+    public CompletionRegistry(int retainedOutcomes) {
+        int capacity = Math.max(1, retainedOutcomes);
+        this.recent = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Transaction> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Records the outcome and wakes everyone waiting on the transaction or subscribed to its account
+    public void publish(Transaction transaction) {
+        String transactionId = transaction.getTransactionId();
+        synchronized (recent) {
+            recent.put(transactionId, transaction);
+        }
+
+        Set<CompletableFuture<Transaction>> waiting = waiters.remove(transactionId);
+        if (waiting != null) {
+            for (CompletableFuture<Transaction> waiter : waiting) {
+                waiter.complete(transaction);
+            }
+        }
+
+        notifySubscribers(transaction);
+    }
+
+    private void notifySubscribers(Transaction transaction) {
+        Set<Listener> listeners = subscribers.get(transaction.getAccountId());
+        if (listeners != null) {
+            for (Listener listener : listeners) {
+                try {
+                    listener.onCompletion(transaction);
+                } catch (Exception e) {
+                    System.err.println("Error notifying completion listener: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Records a status change that is not final yet, such as RETRYING, and passes it to stream
+    // subscribers; waiters keep waiting for the outcome
+    public void publishProgress(Transaction transaction) {
+        // A copy, because the transaction itself changes again while it is being retried
+        Transaction snapshot = new Transaction(transaction.getTransactionId(), transaction.getAccountId(),
+                transaction.getAmount(), transaction.getType(), transaction.getStatus(), transaction.getPrevBalance(),
+                transaction.getNewBalance(), transaction.getFailureReason(), transaction.getCreationTime(),
+                transaction.getProcessedTime());
+        snapshot.setAttempts(transaction.getAttempts());
+        synchronized (recent) {
+            recent.put(transaction.getTransactionId(), snapshot);
+        }
+        notifySubscribers(snapshot);
+    }
+
+    // Completes with the outcome once the transaction finishes, immediately if it finished recently.
+    // Callers that give up must cancel() the future so it is not kept around.
+    public CompletableFuture<Transaction> await(String transactionId) {
+        CompletableFuture<Transaction> waiter = new CompletableFuture<>();
+        // Added inside compute, so cancel() cannot drop the set between its lookup and the add
+        waiters.compute(transactionId, (id, waiting) -> {
+            Set<CompletableFuture<Transaction>> set = waiting != null ? waiting : ConcurrentHashMap.newKeySet();
+            set.add(waiter);
+            return set;
+        });
+
+        // Registered first, so an outcome published meanwhile is either seen here or delivered to the waiter
+        Transaction finished = getRecent(transactionId);
+        if (finished != null && finished.isFinished()) {
+            cancel(transactionId, waiter);
+            waiter.complete(finished);
+        }
+        return waiter;
+    }
+
+    public void cancel(String transactionId, CompletableFuture<Transaction> waiter) {
+        waiters.computeIfPresent(transactionId, (id, waiting) -> {
+            waiting.remove(waiter);
+            return waiting.isEmpty() ? null : waiting;
+        });
+    }
+
+    public Transaction getRecent(String transactionId) {
+        synchronized (recent) {
+            return recent.get(transactionId);
+        }
+    }
+
+    public void subscribe(String accountId, Listener listener) {
+        subscribers.compute(accountId, (id, listeners) -> {
+            Set<Listener> set = listeners != null ? listeners : new CopyOnWriteArraySet<>();
+            set.add(listener);
+            return set;
+        });
+    }
+
+    public void unsubscribe(String accountId, Listener listener) {
+        subscribers.computeIfPresent(accountId, (id, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+    public int getWaiterCount() {
+        int count = 0;
+        for (Set<CompletableFuture<Transaction>> waiting : waiters.values()) {
+            count += waiting.size();
+        }
+        return count;
+    }
+
+    public int getSubscriberCount() {
+        int count = 0;
+        for (Set<Listener> listeners : subscribers.values()) {
+            count += listeners.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,30 @@
+package transaction;
+
+// Thrown when the transaction queue refuses new work so callers can shed load
+public class QueueRejectedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        // Depth is above the high watermark; clients should back off briefly
+        HIGH_WATERMARK,
+        // The queue is at capacity
+        FULL
+    }
+
+    private final Reason reason;
+    private final int retryAfterSeconds;
+
+    public QueueRejectedException(Reason reason, int retryAfterSeconds, String message) {
+        super(message);
+        this.reason = reason;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,40 @@
+package transaction;
+
+import config.AppConfig;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Exponential backoff with full jitter: the n-th retry waits a random time up to base * 2^(n-1),
+// capped at maxDelay, so transactions that failed together do not all come back together
+public class RetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy() {
+        this(AppConfig.getInt("TX_RETRY_MAX_ATTEMPTS", 5),
+                AppConfig.getLong("TX_RETRY_BASE_DELAY_MS", 50),
+                AppConfig.getLong("TX_RETRY_MAX_DELAY_MS", 5000));
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    // Whether a transaction that has been attempted this many times may be tried again
+    public boolean canRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+
+    public long delayMillis(int attempts) {
+        int exponent = Math.min(Math.max(0, attempts - 1), 30);
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << exponent);
+        return 1 + ThreadLocalRandom.current().nextLong(ceiling);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
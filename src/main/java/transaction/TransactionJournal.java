@@ -0,0 +1,568 @@
+package transaction;
+
+import models.Money;
+import models.Transaction;
+import models.User;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only journal of accepted transactions kept in fixed-size, memory-mapped segment files.
+// An entry is written before a transaction is handed to the workers and a checkpoint once it has
+// been executed; whatever has no checkpoint when the journal is opened is returned for replay.
+// Segments are deleted oldest first, so a transaction that stays pending for a long time would keep
+// every later segment on disk; once more than compactSegments are kept, the few entries still
+// pending in the oldest one are written again at the end of the journal and it is deleted.
+public class TransactionJournal {
+    public enum FsyncPolicy {
+        // Forced to disk before enqueue returns; concurrent appends share one force
+        ALWAYS,
+        // Forced by a background thread every interval
+        INTERVAL,
+        // Left to the OS: survives a process crash but not a power loss
+        NONE
+    }
+
+    // Every segment starts with MAGIC and the format version its records are written in
+    private static final int MAGIC = 0x504A524E;
+    // 1: amounts as minor units plus the currency ordinal
+    // 2: entries end with the priority ordinal
+    // 3: entries start with their append sequence, so entries moved forward replay in their original order
+    private static final int FORMAT_VERSION = 3;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final byte ENTRY = 1;
+    private static final byte CHECKPOINT = 2;
+    // Record layout: payload length, CRC32 of the payload, payload (type byte first)
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final int compactSegments;
+    // Most pending entries moved out of one segment, so a compaction fills a small part of a segment
+    private final int compactMaxEntries;
+    private final ThreadLocal<ByteBuffer> encodeBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+    private final ScheduledExecutorService flusher;
+    private final AtomicLong syncedBytes = new AtomicLong();
+    private final Object syncLock = new Object();
+
+    // Everything below is guarded by this
+    // Oldest first; the last one is the segment being appended to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    // Transactions journaled but not yet checkpointed, with the segment holding their entry
+    private final Map<String, Pending> pending = new HashMap<>();
+    private List<Transaction> recovered;
+    private Segment active;
+    private long nextSegmentIndex = 0;
+    private long nextSequence = 0;
+    private long appendedBytes = 0;
+    private long compactedEntries = 0;
+    private boolean closed = false;
+
+    public TransactionJournal(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMs,
+                              int compactSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.compactSegments = Math.max(2, compactSegments);
+        this.compactMaxEntries = Math.max(1, segmentBytes / 1024);
+
+        Files.createDirectories(directory);
+        synchronized (this) {
+            recover();
+            roll();
+        }
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "journal-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    // Returns a token to pass to sync() once the caller is no longer holding any locks
+    public long append(Transaction transaction) throws IOException {
+        ByteBuffer record = encodeEntry(transaction, 0);
+        synchronized (this) {
+            ensureOpen();
+            long sequence = nextSequence++;
+            stampSequence(record, sequence);
+            track(transaction.getTransactionId(), write(record), sequence);
+            return appendedBytes;
+        }
+    }
+
+    // Appends under a single lock so a batch lands contiguously; returns one token for the whole batch
+    public long appendAll(List<Transaction> transactions) throws IOException {
+        synchronized (this) {
+            ensureOpen();
+            for (Transaction transaction : transactions) {
+                long sequence = nextSequence++;
+                track(transaction.getTransactionId(), write(encodeEntry(transaction, sequence)), sequence);
+            }
+            return appendedBytes;
+        }
+    }
+
+    // Checkpoints are never forced: losing one only means the transaction is replayed, and the
+    // duplicate transaction id stops it from being posted twice
+    public void checkpoint(String transactionId) throws IOException {
+        ByteBuffer record = encodeCheckpoint(transactionId);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            Pending entry = pending.remove(transactionId);
+            if (entry == null) {
+                return;
+            }
+            write(record);
+            entry.segment.pendingCount--;
+            reclaim();
+            compact();
+        }
+    }
+
+    // Waits until everything up to token is on disk when the policy is ALWAYS
+    public void sync(long token) throws IOException {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS || syncedBytes.get() >= token) {
+            return;
+        }
+        synchronized (syncLock) {
+            // Another caller's force may already have covered this append
+            if (syncedBytes.get() < token) {
+                force();
+            }
+        }
+    }
+
+    // Entries that were never checkpointed before the journal was last closed, in append order.
+    // They stay pending until checkpointed, so they are replayed again after another crash.
+    public synchronized List<Transaction> takeRecovered() {
+        List<Transaction> result = recovered;
+        recovered = new ArrayList<>();
+        return result;
+    }
+
+    public synchronized boolean isPending(String transactionId) {
+        return pending.containsKey(transactionId);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Segments with nothing pending that are kept only because an older segment still has pending entries
+    public synchronized int getPinnedSegmentCount() {
+        int pinned = 0;
+        for (Segment segment : segments) {
+            if (segment != active && segment.pendingCount == 0) {
+                pinned++;
+            }
+        }
+        return pinned;
+    }
+
+    // Pending entries moved forward out of old segments since the journal was opened
+    public synchronized long getCompactedEntryCount() {
+        return compactedEntries;
+    }
+
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                active.buffer.force();
+            }
+        }
+    }
+
+    private void flush() {
+        try {
+            synchronized (syncLock) {
+                force();
+            }
+        } catch (Exception e) {
+            System.err.println("Error flushing transaction journal: " + e.getMessage());
+        }
+    }
+
+    private void force() throws IOException {
+        MappedByteBuffer buffer;
+        long upTo;
+        synchronized (this) {
+            ensureOpen();
+            buffer = active.buffer;
+            upTo = appendedBytes;
+        }
+        // Earlier segments were forced when they were rolled over
+        buffer.force();
+        syncedBytes.accumulateAndGet(upTo, Math::max);
+    }
+
+    private void track(String transactionId, Segment segment, long sequence) {
+        segment.pendingCount++;
+        pending.put(transactionId, new Pending(segment, sequence));
+    }
+
+    private Segment write(ByteBuffer record) throws IOException {
+        int size = record.remaining();
+        if (size > segmentBytes - SEGMENT_HEADER_BYTES) {
+            throw new IOException("Journal record of " + size + " bytes does not fit in a segment");
+        }
+        if (active.position + size > segmentBytes) {
+            roll();
+        }
+        active.buffer.put(active.position, record.array(), 0, size);
+        active.position += size;
+        appendedBytes += size;
+        return active;
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                active.buffer.force();
+                syncedBytes.accumulateAndGet(appendedBytes, Math::max);
+            }
+            // Its mapping is dropped with it; the file stays until every entry in it is checkpointed
+            active.buffer = null;
+        }
+
+        long index = nextSegmentIndex++;
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        // Preallocated and zero-filled, so a zero length marks the end of the written records
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(segmentBytes);
+            active = new Segment(path, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes), FORMAT_VERSION);
+        }
+        active.buffer.putInt(0, MAGIC);
+        active.buffer.putInt(4, FORMAT_VERSION);
+        active.position = SEGMENT_HEADER_BYTES;
+        segments.addLast(active);
+        reclaim();
+    }
+
+    // Segments are only deleted from the oldest end. A checkpoint is always written after its entry,
+    // so deleting a prefix can never lose the checkpoint of an entry that is kept.
+    private void reclaim() throws IOException {
+        while (segments.size() > 1 && segments.peekFirst().pendingCount == 0) {
+            Files.deleteIfExists(segments.pollFirst().path);
+        }
+    }
+
+    // Moves the entries still pending in the oldest segment to the active one, then deletes it. Only
+    // done when they are few, so the copies cannot fill segments faster than they are freed, and only
+    // for segments in the current format, whose entries carry the sequence they replay in. The copies
+    // are forced before the segment is deleted; after a crash in between, the duplicate entries share
+    // a transaction id and are replayed once.
+    private void compact() throws IOException {
+        Segment oldest = segments.peekFirst();
+        if (segments.size() <= compactSegments || oldest == active || oldest.pendingCount == 0
+                || oldest.pendingCount > compactMaxEntries || oldest.version != FORMAT_VERSION) {
+            return;
+        }
+        List<Transaction> moved = new ArrayList<>();
+        readRecords(oldest.path, (type, payload, version) -> {
+            if (type == ENTRY) {
+                Transaction transaction = decodeEntry(payload, version);
+                Pending entry = pending.get(transaction.getTransactionId());
+                if (entry != null && entry.segment == oldest) {
+                    moved.add(transaction);
+                }
+            }
+        });
+        for (Transaction transaction : moved) {
+            Pending entry = pending.get(transaction.getTransactionId());
+            Segment segment = write(encodeEntry(transaction, entry.sequence));
+            segment.pendingCount++;
+            entry.segment.pendingCount--;
+            entry.segment = segment;
+        }
+        if (fsyncPolicy != FsyncPolicy.NONE) {
+            active.buffer.force();
+        }
+        compactedEntries += moved.size();
+        int kept = segments.size();
+        reclaim();
+        System.out.println("Transaction journal moved " + moved.size() + " pending entries out of "
+                + oldest.path.getFileName() + ", deleting " + (kept - segments.size()) + " segments");
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing
+                    .filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+
+        Map<String, Transaction> unfinished = new LinkedHashMap<>();
+        for (Path path : files) {
+            Segment segment = new Segment(path, null, 0);
+            scan(segment, unfinished);
+            segments.addLast(segment);
+
+            String name = path.getFileName().toString();
+            long index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            nextSegmentIndex = Math.max(nextSegmentIndex, index + 1);
+        }
+
+        for (Pending entry : pending.values()) {
+            entry.segment.pendingCount++;
+        }
+        recovered = new ArrayList<>(unfinished.values());
+        // Entries moved forward sit after newer ones in the files
+        recovered.sort(Comparator.comparingLong(t -> pending.get(t.getTransactionId()).sequence));
+        if (!files.isEmpty()) {
+            System.out.println("Transaction journal recovered " + recovered.size()
+                    + " unfinished transactions from " + files.size() + " segments");
+        }
+    }
+
+    private void scan(Segment segment, Map<String, Transaction> unfinished) throws IOException {
+        segment.version = readRecords(segment.path, (type, payload, version) -> {
+            if (type == ENTRY) {
+                // Entries written before sequences existed replay in the order they are read
+                long sequence = version >= 3 ? payload.getLong(payload.position()) : nextSequence;
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                Transaction transaction = decodeEntry(payload, version);
+                unfinished.put(transaction.getTransactionId(), transaction);
+                pending.put(transaction.getTransactionId(), new Pending(segment, sequence));
+            } else if (type == CHECKPOINT) {
+                String transactionId = readString(payload);
+                unfinished.remove(transactionId);
+                pending.remove(transactionId);
+            } else {
+                throw new IOException("Unknown record type " + type + " in journal " + segment.path.getFileName());
+            }
+        });
+    }
+
+    private interface RecordReader {
+        // payload is positioned just after the type byte
+        void read(byte type, ByteBuffer payload, int version) throws IOException;
+    }
+
+    // Passes every intact record in the segment file to reader; returns the segment's format version,
+    // or 0 when nothing was ever written to it
+    private int readRecords(Path path, RecordReader reader) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // Zero-filled when the process stopped before the header reached the disk, so nothing was written
+        if (buffer.remaining() < SEGMENT_HEADER_BYTES || buffer.getInt(0) == 0) {
+            return 0;
+        }
+        // Segments from builds before the header existed use layouts that cannot be told apart,
+        // so replaying them could post wrong amounts
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Transaction journal " + path.getFileName() + " has no format header;"
+                    + " it was written by an older build and must be replayed by that build or removed");
+        }
+        int version = buffer.getInt(4);
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Transaction journal " + path.getFileName()
+                    + " has unsupported format version " + version);
+        }
+        buffer.position(SEGMENT_HEADER_BYTES);
+
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+
+            ByteBuffer payload = buffer.slice(buffer.position(), length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                // Torn write at the tail of the segment that was active during a crash
+                System.err.println("Transaction journal " + path.getFileName()
+                        + " has a corrupt record at offset " + start + ", ignoring the rest of the segment");
+                break;
+            }
+            buffer.position(buffer.position() + length);
+
+            reader.read(payload.get(), payload, version);
+        }
+        return version;
+    }
+
+    private ByteBuffer encodeEntry(Transaction transaction, long sequence) {
+        ByteBuffer buffer = beginRecord();
+        buffer = putByte(buffer, ENTRY);
+        buffer = putLong(buffer, sequence);
+        buffer = putString(buffer, transaction.getTransactionId());
+        buffer = putString(buffer, transaction.getAccountId());
+        buffer = putLong(buffer, transaction.getAmount().getMinorUnits());
+        buffer = putByte(buffer, (byte) transaction.getAmount().getCurrency().ordinal());
+        buffer = putByte(buffer, (byte) transaction.getType().ordinal());
+        buffer = putLong(buffer, transaction.getCreationTime().toEpochMilli());
+        buffer = putByte(buffer, (byte) WeightedLaneQueue.laneOf(transaction));
+        return endRecord(buffer);
+    }
+
+    private ByteBuffer encodeCheckpoint(String transactionId) {
+        ByteBuffer buffer = beginRecord();
+        buffer = putByte(buffer, CHECKPOINT);
+        buffer = putString(buffer, transactionId);
+        return endRecord(buffer);
+    }
+
+    // Sets the sequence of an entry encoded before its sequence was known
+    private static void stampSequence(ByteBuffer record, long sequence) {
+        int length = record.getInt(0);
+        record.putLong(HEADER_BYTES + 1, sequence);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, length);
+        record.putInt(4, (int) crc.getValue());
+    }
+
+    private Transaction decodeEntry(ByteBuffer payload, int version) {
+        if (version >= 3) {
+            payload.getLong();
+        }
+        Transaction transaction = new Transaction();
+        transaction.setTransactionId(readString(payload));
+        transaction.setAccountId(readString(payload));
+        long amountMinor = payload.getLong();
+        transaction.setAmount(Money.ofMinor(amountMinor, User.Currency.values()[payload.get()]));
+        transaction.setType(Transaction.TransactionType.values()[payload.get()]);
+        transaction.setCreationTime(Instant.ofEpochMilli(payload.getLong()));
+        // Version 1 entries have no priority and replay as NORMAL
+        if (version >= 2) {
+            transaction.setPriority(Transaction.Priority.values()[payload.get()]);
+        }
+        transaction.setStatus(Transaction.TransactionStatus.PENDING);
+        return transaction;
+    }
+
+    private ByteBuffer beginRecord() {
+        ByteBuffer buffer = encodeBuffer.get();
+        buffer.clear();
+        buffer.position(HEADER_BYTES);
+        return buffer;
+    }
+
+    private ByteBuffer endRecord(ByteBuffer buffer) {
+        int length = buffer.position() - HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_BYTES, length);
+        buffer.putInt(0, length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private ByteBuffer putByte(ByteBuffer buffer, byte value) {
+        buffer = ensureRemaining(buffer, 1);
+        buffer.put(value);
+        return buffer;
+    }
+
+    private ByteBuffer putLong(ByteBuffer buffer, long value) {
+        buffer = ensureRemaining(buffer, Long.BYTES);
+        buffer.putLong(value);
+        return buffer;
+    }
+
+    private ByteBuffer putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer = ensureRemaining(buffer, Short.BYTES + bytes.length);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    private ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        grown.put(buffer.array(), 0, buffer.position());
+        encodeBuffer.set(grown);
+        return grown;
+    }
+
+    private static String readString(ByteBuffer payload) {
+        int length = Short.toUnsignedInt(payload.getShort());
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Transaction journal is closed");
+        }
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private MappedByteBuffer buffer;
+        private int version;
+        private int position = 0;
+        private int pendingCount = 0;
+
+        private Segment(Path path, MappedByteBuffer buffer, int version) {
+            this.path = path;
+            this.buffer = buffer;
+            this.version = version;
+        }
+    }
+
+    private static final class Pending {
+        private Segment segment;
+        private final long sequence;
+
+        private Pending(Segment segment, long sequence) {
+            this.segment = segment;
+            this.sequence = sequence;
+        }
+    }
+}
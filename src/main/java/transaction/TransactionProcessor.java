@@ -1,22 +1,101 @@
 package transaction;
 
+import config.AppConfig;
+import config.ThreadMode;
+import database.DBManager;
+import database.TransientErrors;
+import metrics.Metrics;
 import models.Transaction;
 import services.PaymentService;
+import services.UnpersistedTransactionException;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TransactionProcessor {
+    public enum Mode {
+        // All workers take from the shared queue
+        SHARED,
+        // Transactions are routed by account to single-threaded lanes
+        PARTITIONED
+    }
+
     private final PaymentService paymentService;
     private final TransactionQueue queue;
+    private final CompletionRegistry completions;
     private final ExecutorService executorService;
-    private boolean isRunning = false;
+    private final Mode mode;
+    private final ThreadMode threadMode;
+    private final int workerCount;
+    // Most transactions a worker takes at once; their postings are submitted together
+    private final int drainMax = Math.max(1, AppConfig.getInt("TX_PROCESSOR_DRAIN_MAX", 100));
+    // Caps transactions in flight when each one gets its own virtual thread
+    private final Semaphore inFlight;
+    private final List<BlockingQueue<Transaction>> lanes;
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    // Transactions waiting for or running another attempt, or held behind one. Bounded, so a burst
+    // of transient failures fails fast instead of piling up retries that compete with fresh work.
+    private final AtomicInteger pendingRetries = new AtomicInteger();
+    private final int maxPendingRetries = Math.max(0, AppConfig.getInt("TX_RETRY_MAX_PENDING", 1000));
+    // Waits out the backoff and resubmits; attempts run on the batch writer, so no worker thread is held
+    private final ScheduledExecutorService retryExecutor;
+    // Accounts with a transaction waiting for another attempt. Their later transactions are held
+    // until it is done and then run one at a time. Those already submitted alongside it are failed
+    // by the batch writer, which blocks the account until the retry, and end up held here too.
+    private final Map<String, Recovery> recovering = new ConcurrentHashMap<>();
+    private volatile boolean isRunning = false;
 
     public TransactionProcessor(PaymentService paymentService) {
+        this(paymentService,
+                Mode.valueOf(AppConfig.getString("TX_PROCESSOR_MODE", "SHARED").toUpperCase()),
+                AppConfig.getInt("TX_PROCESSOR_WORKERS", 5),
+                AppConfig.getInt("TX_PROCESSOR_LANES", defaultLaneCount()),
+                AppConfig.getInt("TX_PROCESSOR_LANE_CAPACITY", 1000),
+                ThreadMode.fromConfig());
+    }
+
+    public TransactionProcessor(PaymentService paymentService, Mode mode, int workerCount, int laneCount,
+                                int laneCapacity, ThreadMode threadMode) {
         this.paymentService = paymentService;
         this.queue = TransactionQueue.getInstance();
-        this.executorService = Executors.newFixedThreadPool(5);
+        this.completions = paymentService.getCompletions();
+        this.mode = mode;
+        this.threadMode = threadMode;
+        this.inFlight = new Semaphore(Math.max(1, AppConfig.getInt("TX_PROCESSOR_MAX_IN_FLIGHT", defaultMaxInFlight())));
+
+        if (mode == Mode.PARTITIONED) {
+            this.workerCount = Math.max(1, laneCount);
+            this.lanes = new ArrayList<>(this.workerCount);
+            for (int i = 0; i < this.workerCount; i++) {
+                // Bounded so a hot lane pushes back on the dispatcher instead of buffering without limit
+                lanes.add(new LinkedBlockingQueue<>(laneCapacity));
+            }
+            // One thread per lane plus the dispatcher
+            this.executorService = threadMode.newExecutor("tx-lane-", this.workerCount + 1);
+        } else {
+            this.workerCount = Math.max(1, workerCount);
+            this.lanes = null;
+            this.executorService = threadMode.newExecutor("tx-worker-", this.workerCount);
+        }
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tx-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
         startProcessing();
     }
 
@@ -26,42 +105,380 @@ public class TransactionProcessor {
         }
 
         isRunning = true;
-        System.out.println("Transaction processor started");
 
-        // Start multiple worker threads
-        for (int i = 0; i < 5; i++) {
-            executorService.submit(this::processTransactions);
+        if (mode == Mode.PARTITIONED) {
+            executorService.submit(this::dispatchTransactions);
+            for (BlockingQueue<Transaction> lane : lanes) {
+                executorService.submit(() -> processLane(lane));
+            }
+            System.out.println("Transaction processor started with " + lanes.size() + " partitioned lanes");
+        } else if (threadMode == ThreadMode.VIRTUAL) {
+            executorService.submit(this::dispatchPerTask);
+            System.out.println("Transaction processor started with a virtual thread per transaction");
+        } else {
+            // Start multiple worker threads
+            for (int i = 0; i < workerCount; i++) {
+                executorService.submit(this::processTransactions);
+            }
+            System.out.println("Transaction processor started with " + workerCount + " workers");
         }
     }
 
     private void processTransactions() {
+        List<Transaction> batch = new ArrayList<>(drainMax);
         while (isRunning) {
             try {
-                Transaction transaction = queue.dequeue();
+                batch.add(queue.dequeue());
+                queue.drainTo(batch, drainMax - 1);
+                executeAll(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                System.err.println("Error in transaction processing: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
 
-                if (transaction != null) {
+    // Hands each transaction to its own virtual thread, holding back once the in-flight cap is reached
+    private void dispatchPerTask() {
+        while (isRunning) {
+            try {
+                inFlight.acquire();
+                Transaction transaction;
+                try {
+                    transaction = queue.dequeue();
+                } catch (InterruptedException e) {
+                    inFlight.release();
+                    throw e;
+                }
+
+                executorService.submit(() -> {
                     try {
-                        System.out.println("Processing transaction: " + transaction.getTransactionId());
-                        paymentService.executeTransaction(transaction);
-                        System.out.println("Transaction completed: " + transaction.getTransactionId());
-                    } catch (Exception e) {
-                        System.err.println("Transaction failed: " + transaction.getTransactionId() + " - " + e.getMessage());
-                        transaction.setStatus(Transaction.TransactionStatus.FAILED);
+                        execute(transaction);
+                    } finally {
+                        inFlight.release();
                     }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                System.err.println("Error dispatching transaction: " + e.getMessage());
+            }
+        }
+    }
+
+    // Routes each transaction to the lane owning its account, preserving per-account order
+    private void dispatchTransactions() {
+        while (isRunning) {
+            try {
+                Transaction transaction = queue.dequeue();
+
+                if (transaction != null) {
+                    lanes.get(laneFor(transaction.getAccountId())).put(transaction);
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
+            } catch (Exception e) {
+                System.err.println("Error dispatching transaction: " + e.getMessage());
+            }
+        }
+    }
+
+    private void processLane(BlockingQueue<Transaction> lane) {
+        List<Transaction> batch = new ArrayList<>(drainMax);
+        while (isRunning) {
+            try {
+                batch.add(lane.take());
+                lane.drainTo(batch, drainMax - 1);
+                executeAll(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             } catch (Exception e) {
                 System.err.println("Error in transaction processing: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void execute(Transaction transaction) {
+        executeAll(List.of(transaction));
+    }
+
+    // Submits every posting before waiting on any, so the batch writer can commit them together.
+    // Postings for one account go to the same writer in submission order, so order is kept. If one
+    // fails transiently, the writer fails the account's later ones too, and as failures are handled
+    // in submission order they are held behind its retry.
+    private void executeAll(List<Transaction> transactions) {
+        List<CompletableFuture<Void>> results = new ArrayList<>(transactions.size());
+        for (Transaction transaction : transactions) {
+            if (transaction.getEnqueuedNanos() != 0) {
+                Metrics.QUEUE_WAIT.recordSince(transaction.getEnqueuedNanos());
+            }
+            if (holdBehindRetry(transaction)) {
+                results.add(null);
+                continue;
+            }
+            System.out.println("Processing transaction: " + transaction.getTransactionId());
+            transaction.setAttempts(transaction.getAttempts() + 1);
+            try {
+                results.add(paymentService.submitTransaction(transaction));
+            } catch (Exception e) {
+                results.add(CompletableFuture.failedFuture(e));
+            }
+        }
+
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            if (results.get(i) == null) {
+                continue;
+            }
+            try {
+                results.get(i).join();
+                succeeded(transaction);
+            } catch (CompletionException e) {
+                failed(transaction, e.getCause() != null ? e.getCause() : e);
+            }
+        }
+    }
+
+    private void succeeded(Transaction transaction) {
+        Metrics.TRANSACTIONS_COMPLETED.increment();
+        System.out.println("Transaction completed: " + transaction.getTransactionId());
+        completions.publish(transaction);
+        queue.complete(transaction);
+        resumeAccount(transaction);
+    }
+
+    // Transient database failures are retried later; anything else, or running out of attempts or
+    // retry capacity, fails the transaction for good
+    private void failed(Transaction transaction, Throwable cause) {
+        if (cause instanceof UnpersistedTransactionException) {
+            leaveForReplay(transaction, cause.getMessage());
+        } else if (TransientErrors.isTransient(cause)) {
+            retryLater(transaction, cause.getMessage());
+        } else {
+            failFinally(transaction, cause.getMessage());
+        }
+    }
+
+    // No final outcome yet: left in the journal unchecked, so the next start replays it
+    private void leaveForReplay(Transaction transaction, String reason) {
+        System.err.println("Transaction left for replay: " + transaction.getTransactionId() + " - " + reason);
+    }
+
+    private void retryLater(Transaction transaction, String reason) {
+        if (!isRunning) {
+            leaveForReplay(transaction, reason);
+            return;
+        }
+        // Another of the account's transactions is already waiting; this one goes after it
+        if (holdBehindRetry(transaction) || scheduleRetry(transaction, reason)) {
+            return;
+        }
+        failFinally(transaction, reason + " (gave up after " + transaction.getAttempts() + " attempts)");
+    }
+
+    private void failFinally(Transaction transaction, String reason) {
+        System.err.println("Transaction failed: " + transaction.getTransactionId() + " - " + reason);
+        transaction.setStatus(Transaction.TransactionStatus.FAILED);
+        transaction.setFailureReason(reason);
+        Metrics.TRANSACTIONS_FAILED.increment();
+        completions.publish(transaction);
+
+        // Stored with its reason and attempts; the journal keeps it until then, in case the process stops first
+        paymentService.recordFailure(transaction).whenComplete((ignored, e) -> {
+            if (e != null) {
+                System.err.println("Error recording failed transaction " + transaction.getTransactionId() + ": " + e.getMessage());
+            }
+            queue.complete(transaction);
+        });
+        resumeAccount(transaction);
+    }
+
+    // Not checkpointed while waiting, so a retry lost to a shutdown is replayed from the journal
+    private boolean scheduleRetry(Transaction transaction, String reason) {
+        if (!isRunning || !retryPolicy.canRetry(transaction.getAttempts())) {
+            return false;
+        }
+        if (pendingRetries.incrementAndGet() > maxPendingRetries) {
+            pendingRetries.decrementAndGet();
+            return false;
+        }
+
+        long delay = retryPolicy.delayMillis(transaction.getAttempts());
+        System.err.println("Transaction " + transaction.getTransactionId() + " hit a transient failure, retrying in "
+                + delay + " ms: " + reason);
+        transaction.setStatus(Transaction.TransactionStatus.RETRYING);
+        transaction.setFailureReason(reason);
+        Metrics.TRANSACTIONS_RETRIED.increment();
+        completions.publishProgress(transaction);
+        // Before scheduling, so the account's later transactions are held from now on
+        recovering.compute(transaction.getAccountId(), (id, recovery) -> {
+            Recovery current = recovery != null ? recovery : new Recovery();
+            current.transaction = transaction;
+            return current;
+        });
+        try {
+            retryExecutor.schedule(() -> retry(transaction), delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            pendingRetries.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void retry(Transaction transaction) {
+        boolean committed;
+        try {
+            // A lost connection or a timeout may have hidden a commit; posting again would apply it twice
+            committed = paymentService.confirmCommitted(transaction);
+        } catch (Exception e) {
+            // Still unknown, so this counts as another failed attempt
+            pendingRetries.decrementAndGet();
+            transaction.setAttempts(transaction.getAttempts() + 1);
+            retryLater(transaction, "Could not check for an earlier commit: " + e.getMessage());
+            return;
+        }
+        if (committed) {
+            System.out.println("Transaction " + transaction.getTransactionId() + " had committed before the failure");
+            pendingRetries.decrementAndGet();
+            succeeded(transaction);
+            return;
+        }
+        transaction.setAttempts(transaction.getAttempts() + 1);
+        transaction.setFailureReason(null);
+        whenSettled(transaction, submit(transaction), pendingRetries::decrementAndGet);
+    }
+
+    // The next held transaction of the account, if any, runs now that the one before it is done
+    private void resumeAccount(Transaction finished) {
+        paymentService.releaseAccount(finished);
+        if (recovering.isEmpty()) {
+            return;
+        }
+        Transaction[] next = new Transaction[1];
+        recovering.computeIfPresent(finished.getAccountId(), (id, recovery) -> {
+            if (recovery.transaction != finished) {
+                return recovery;
+            }
+            next[0] = recovery.held.pollFirst();
+            if (next[0] == null) {
+                return null;
+            }
+            pendingRetries.decrementAndGet();
+            recovery.transaction = next[0];
+            return recovery;
+        });
+        if (next[0] != null) {
+            System.out.println("Processing held transaction: " + next[0].getTransactionId());
+            next[0].setAttempts(next[0].getAttempts() + 1);
+            whenSettled(next[0], submit(next[0]), () -> { });
+        }
+    }
+
+    // True when the transaction was queued behind a retry of its account, or failed because the
+    // retry capacity it would take is used up; it cannot run ahead of the retry either way
+    private boolean holdBehindRetry(Transaction transaction) {
+        if (recovering.isEmpty()) {
+            return false;
+        }
+        boolean[] behind = new boolean[1];
+        boolean[] held = new boolean[1];
+        recovering.computeIfPresent(transaction.getAccountId(), (id, recovery) -> {
+            if (recovery.transaction != transaction) {
+                behind[0] = true;
+                if (pendingRetries.incrementAndGet() > maxPendingRetries) {
+                    pendingRetries.decrementAndGet();
+                } else {
+                    recovery.held.addLast(transaction);
+                    held[0] = true;
+                }
             }
+            return recovery;
+        });
+        if (behind[0] && !held[0]) {
+            failFinally(transaction, "Too many transactions waiting on retries");
+        }
+        return behind[0];
+    }
+
+    private CompletableFuture<Void> submit(Transaction transaction) {
+        try {
+            return paymentService.submitTransaction(transaction);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Handles the outcome on the retry thread rather than the batch writer that completed it. Once
+    // the processor is stopped the transaction is left unchecked in the journal for the next start.
+    private void whenSettled(Transaction transaction, CompletableFuture<Void> result, Runnable settled) {
+        result.whenComplete((ignored, e) -> {
+            try {
+                retryExecutor.execute(() -> {
+                    settled.run();
+                    if (e == null) {
+                        succeeded(transaction);
+                    } else {
+                        failed(transaction, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                });
+            } catch (RejectedExecutionException rejected) {
+                settled.run();
+                System.err.println("Transaction left for replay: " + transaction.getTransactionId()
+                        + " - processor stopped before its outcome was handled");
+            }
+        });
+    }
+
+    public int getPendingRetries() {
+        return pendingRetries.get();
+    }
+
+    // Transactions held behind a retry of their account; also counted in getPendingRetries
+    public int getHeldTransactions() {
+        int held = 0;
+        for (Recovery recovery : recovering.values()) {
+            held += recovery.held.size();
         }
+        return held;
+    }
+
+    private int laneFor(String accountId) {
+        int h = accountId == null ? 0 : accountId.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, lanes.size());
+    }
+
+    // Default to one lane per core, but never more lanes than pooled connections
+    private static int defaultLaneCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int poolSize = DBManager.getDataSource() != null ? DBManager.getDataSource().getMaxSize() : cores;
+        return Math.max(1, Math.min(cores, poolSize));
+    }
+
+    private static int defaultMaxInFlight() {
+        return DBManager.getDataSource() != null ? DBManager.getDataSource().getMaxSize() : 16;
     }
 
     public void shutdown() {
         System.out.println("Shutting down transaction processor...");
         isRunning = false;
 
+        // Retries still waiting, and transactions held behind them, stay unchecked in the journal and
+        // are replayed on the next start; outcomes of attempts still running are handed over the same way
+        int waiting = retryExecutor.shutdownNow().size();
+        if (waiting > 0 || !recovering.isEmpty()) {
+            System.out.println("Left " + waiting + " retries and " + getHeldTransactions()
+                    + " held transactions for replay");
+        }
         executorService.shutdown();
         try {
             if (!executorService.awaitTermination(10, TimeUnit.SECONDS)) {
@@ -77,4 +494,31 @@ public class TransactionProcessor {
     public boolean isRunning() {
         return isRunning;
     }
-}
\ No newline at end of file
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    // Only touched inside recovering's compute calls
+    private static final class Recovery {
+        // Waiting for another attempt, or running after being held
+        private Transaction transaction;
+        private final ArrayDeque<Transaction> held = new ArrayDeque<>();
+    }
+
+    // Number of transactions waiting in each lane; empty in shared mode
+    public int[] getLaneDepths() {
+        if (lanes == null) {
+            return new int[0];
+        }
+        int[] depths = new int[lanes.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = lanes.get(i).size();
+        }
+        return depths;
+    }
+}
@@ -1,16 +1,95 @@
 package transaction;
 
+import config.AppConfig;
+import config.StorageBackend;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
 import models.Transaction;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TransactionQueue {
     private static TransactionQueue instance;
-    private final BlockingQueue<Transaction> queue;
+    private final WeightedLaneQueue queue;
+    private final int capacity;
+    private final int highWatermark;
+    private final int shedRetryAfterSeconds;
+    private final int fullRetryAfterSeconds;
+    private final LongAdder enqueuedCount = new LongAdder();
+    private final LongAdder shedCount = new LongAdder();
+    private final LongAdder fullCount = new LongAdder();
+    // Per lane, indexed by Transaction.Priority ordinal
+    private final LongAdder[] laneDequeued;
+    private final LatencyHistogram[] laneWait;
+    // Null when JOURNAL_ENABLED is false or STORAGE_BACKEND is MEMORY
+    private final TransactionJournal journal;
+    // Admission is serialized so capacity checks hold and the journal order matches the queue order
+    private final Object enqueueLock = new Object();
 
     private TransactionQueue() {
-        this.queue = new LinkedBlockingQueue<>();
+        this.capacity = Math.max(1, AppConfig.getInt("TX_QUEUE_CAPACITY", 10_000));
+        this.highWatermark = Math.min(capacity, AppConfig.getInt("TX_QUEUE_HIGH_WATERMARK", capacity * 8 / 10));
+        this.shedRetryAfterSeconds = AppConfig.getInt("TX_QUEUE_SHED_RETRY_AFTER_SECONDS", 1);
+        this.fullRetryAfterSeconds = AppConfig.getInt("TX_QUEUE_FULL_RETRY_AFTER_SECONDS", 5);
+        Transaction.Priority[] priorities = Transaction.Priority.values();
+        int[] weights = new int[priorities.length];
+        int[] laneCapacities = new int[priorities.length];
+        this.laneDequeued = new LongAdder[priorities.length];
+        this.laneWait = new LatencyHistogram[priorities.length];
+        for (Transaction.Priority priority : priorities) {
+            int i = priority.ordinal();
+            weights[i] = AppConfig.getInt("TX_QUEUE_WEIGHT_" + priority.name(), defaultWeight(priority));
+            // Bulk is held to half the queue so a burst leaves room for everyone else
+            laneCapacities[i] = AppConfig.getInt("TX_QUEUE_CAPACITY_" + priority.name(),
+                    priority == Transaction.Priority.BULK ? Math.max(1, capacity / 2) : capacity);
+            laneDequeued[i] = new LongAdder();
+            laneWait[i] = new LatencyHistogram();
+        }
+        this.queue = new WeightedLaneQueue(capacity, weights, laneCapacities);
+        this.journal = journalEnabled() ? openJournal() : null;
+    }
+
+    private static int defaultWeight(Transaction.Priority priority) {
+        switch (priority) {
+            case INTERACTIVE:
+                return 8;
+            case NORMAL:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    // The MEMORY backend starts empty, so replaying a journal would post old transactions against
+    // accounts that no longer exist; it is never journaled, whatever JOURNAL_ENABLED says
+    private static boolean journalEnabled() {
+        if (!AppConfig.getBoolean("JOURNAL_ENABLED", true)) {
+            return false;
+        }
+        if (StorageBackend.fromConfig() == StorageBackend.MEMORY) {
+            System.out.println("Transaction journal disabled: STORAGE_BACKEND=MEMORY keeps nothing to replay into");
+            return false;
+        }
+        return true;
+    }
+
+    private static TransactionJournal openJournal() {
+        try {
+            TransactionJournal.FsyncPolicy fsyncPolicy =
+                    TransactionJournal.FsyncPolicy.valueOf(AppConfig.getString("JOURNAL_FSYNC", "INTERVAL").toUpperCase());
+            return new TransactionJournal(
+                    Path.of(AppConfig.getString("JOURNAL_DIR", "journal")),
+                    AppConfig.getInt("JOURNAL_SEGMENT_BYTES", 64 * 1024 * 1024),
+                    fsyncPolicy,
+                    AppConfig.getLong("JOURNAL_FSYNC_INTERVAL_MS", 10),
+                    AppConfig.getInt("JOURNAL_COMPACT_SEGMENTS", 4));
+        } catch (IOException e) {
+            throw new IllegalStateException("Error opening transaction journal: " + e.getMessage(), e);
+        }
     }
 
     public static synchronized TransactionQueue getInstance() {
@@ -20,25 +99,230 @@ public class TransactionQueue {
         return instance;
     }
 
-    public void enqueue(Transaction transaction) throws Exception {
-        try {
+    // Never blocks. Past the high watermark a growing share of requests is shed (all of them
+    // once the queue is full), so clients back off before the queue is exhausted.
+    public void enqueue(Transaction transaction) throws QueueRejectedException, IOException {
+        long start = System.nanoTime();
+        if (shouldShed(queue.size())) {
+            shedCount.increment();
+            throw new QueueRejectedException(QueueRejectedException.Reason.HIGH_WATERMARK, shedRetryAfterSeconds,
+                    "Transaction queue is overloaded, retry later");
+        }
+
+        transaction.setStatus(Transaction.TransactionStatus.PENDING);
+        transaction.setEnqueuedNanos(start);
+        long syncToken = 0;
+        // Only journal what the queue will take, and only let workers see journaled transactions
+        synchronized (enqueueLock) {
+            if (!queue.hasRoomFor(transaction)) {
+                throw rejectFull("Transaction queue is full, retry later");
+            }
+            if (journal != null) {
+                syncToken = journal.append(transaction);
+            }
+            // Cannot fail: other producers wait on the lock and workers only take
+            queue.offer(transaction);
+        }
+        sync(syncToken);
+        enqueuedCount.increment();
+        Metrics.ENQUEUE.recordSince(start);
+    }
+
+    // All or nothing: either every transaction is queued, in order, or none is
+    public void enqueueAll(List<Transaction> transactions) throws QueueRejectedException, IOException {
+        long start = System.nanoTime();
+        if (shouldShed(queue.size())) {
+            shedCount.increment();
+            throw new QueueRejectedException(QueueRejectedException.Reason.HIGH_WATERMARK, shedRetryAfterSeconds,
+                    "Transaction queue is overloaded, retry later");
+        }
+        if (transactions.size() > capacity) {
+            throw new IllegalArgumentException("Batch of " + transactions.size()
+                    + " transactions exceeds the queue capacity of " + capacity);
+        }
+
+        for (Transaction transaction : transactions) {
             transaction.setStatus(Transaction.TransactionStatus.PENDING);
-            queue.put(transaction);
-            System.out.println();
+            transaction.setEnqueuedNanos(start);
+        }
+        long syncToken = 0;
+        synchronized (enqueueLock) {
+            if (!queue.hasRoomFor(transactions)) {
+                throw rejectFull("Transaction queue has no room for a batch of " + transactions.size() + ", retry later");
+            }
+            if (journal != null) {
+                syncToken = journal.appendAll(transactions);
+            }
+            queue.offerAll(transactions);
+        }
+        sync(syncToken);
+        enqueuedCount.add(transactions.size());
+        Metrics.ENQUEUE.recordSince(start);
+    }
+
+    private void sync(long syncToken) {
+        if (journal == null) {
+            return;
         }
-        catch (Exception e) {
-            Thread.currentThread().interrupt();
-            throw new Exception("Failed to enqueue transaction: " + e.getMessage());
+        try {
+            journal.sync(syncToken);
+        } catch (IOException e) {
+            // Already queued, so the request is still accepted
+            System.err.println("Error syncing transaction journal: " + e.getMessage());
         }
     }
 
+    private QueueRejectedException rejectFull(String message) {
+        fullCount.increment();
+        return new QueueRejectedException(QueueRejectedException.Reason.FULL, fullRetryAfterSeconds, message);
+    }
+
+    private boolean shouldShed(int depth) {
+        if (depth < highWatermark) {
+            return false;
+        }
+        if (depth >= capacity) {
+            return false; // let offer() fail and report the queue as full
+        }
+        double overload = (double) (depth - highWatermark + 1) / (capacity - highWatermark + 1);
+        return ThreadLocalRandom.current().nextDouble() < overload;
+    }
+
+    // Lanes are served by weight, so the next transaction is not necessarily the oldest
     public Transaction dequeue() throws InterruptedException {
         Transaction transaction = queue.take();
-        transaction.setStatus(Transaction.TransactionStatus.PROCESSING);
+        dequeued(transaction, System.nanoTime());
         return transaction;
     }
 
+    // Moves up to maxTransactions already-queued transactions into batch without waiting
+    public int drainTo(List<Transaction> batch, int maxTransactions) {
+        int from = batch.size();
+        int drained = queue.drainTo(batch, maxTransactions);
+        long now = System.nanoTime();
+        for (int i = from; i < batch.size(); i++) {
+            dequeued(batch.get(i), now);
+        }
+        return drained;
+    }
+
+    private void dequeued(Transaction transaction, long now) {
+        transaction.setStatus(Transaction.TransactionStatus.PROCESSING);
+        // Counted against the lane it actually waited in, not the one its priority names
+        Transaction.Priority queuedLane = transaction.getQueuedLane();
+        int lane = queuedLane != null ? queuedLane.ordinal() : WeightedLaneQueue.laneOf(transaction);
+        laneDequeued[lane].increment();
+        if (transaction.getEnqueuedNanos() != 0) {
+            laneWait[lane].record(now - transaction.getEnqueuedNanos());
+        }
+    }
+
+    // Marks a transaction as finished so it is not replayed after a restart
+    public void complete(Transaction transaction) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.checkpoint(transaction.getTransactionId());
+        } catch (IOException e) {
+            System.err.println("Error checkpointing transaction " + transaction.getTransactionId() + ": " + e.getMessage());
+        }
+    }
+
+    public interface ReplayFilter {
+        // True when the transaction's outcome was stored but the process stopped before its checkpoint
+        boolean isFinished(Transaction transaction) throws Exception;
+    }
+
+    // Re-queues transactions that were accepted but never finished before the last shutdown,
+    // checkpointing the ones the filter reports as already finished instead.
+    // Blocks while the queue is full, so the processor must already be running.
+    public int replayJournal(ReplayFilter filter) throws Exception {
+        if (journal == null) {
+            return 0;
+        }
+        int replayed = 0;
+        for (Transaction transaction : journal.takeRecovered()) {
+            if (filter.isFinished(transaction)) {
+                complete(transaction);
+                continue;
+            }
+            transaction.setEnqueuedNanos(System.nanoTime());
+            queue.put(transaction);
+            replayed++;
+        }
+        return replayed;
+    }
+
+    // Whether the transaction was accepted and has not finished yet; only known with the journal enabled
+    public boolean isPending(String transactionId) {
+        return journal != null && journal.isPending(transactionId);
+    }
+
+    // Journal segment files on disk; 0 with the journal disabled
+    public int getJournalSegmentCount() {
+        return journal == null ? 0 : journal.getSegmentCount();
+    }
+
+    // Segments kept on disk only because an older segment still has a pending entry
+    public int getJournalPinnedSegmentCount() {
+        return journal == null ? 0 : journal.getPinnedSegmentCount();
+    }
+
+    public long getJournalCompactedCount() {
+        return journal == null ? 0 : journal.getCompactedEntryCount();
+    }
+
+    public void shutdown() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
     public int size() {
         return queue.size();
     }
-}
\ No newline at end of file
+
+    public int getLaneDepth(Transaction.Priority priority) {
+        return queue.laneSize(priority);
+    }
+
+    public int getLaneCapacity(Transaction.Priority priority) {
+        return queue.laneCapacity(priority);
+    }
+
+    public int getLaneWeight(Transaction.Priority priority) {
+        return queue.weight(priority);
+    }
+
+    public long getLaneDequeuedCount(Transaction.Priority priority) {
+        return laneDequeued[priority.ordinal()].sum();
+    }
+
+    // Time spent queued by the transactions taken from the lane
+    public LatencyHistogram getLaneWait(Transaction.Priority priority) {
+        return laneWait[priority.ordinal()];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.sum();
+    }
+
+    // Requests turned away above the high watermark
+    public long getShedCount() {
+        return shedCount.sum();
+    }
+
+    // Requests turned away because the queue was full
+    public long getRejectedFullCount() {
+        return fullCount.sum();
+    }
+}
@@ -0,0 +1,247 @@
+package transaction;
+
+import models.Transaction;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue with one FIFO lane per priority. Takers are served by smooth weighted round
+// robin over the lanes that have work: while several lanes are busy each gets its weight's share
+// of dequeues, interleaved rather than in bursts, and a lane gets every dequeue while the others
+// are empty. Each lane also has its own capacity, so one lane cannot take all the room.
+// Priority belongs to the account rather than to each transaction: while an account has
+// transactions queued, its new ones join the same lane behind them, so an interactive payment
+// never overtakes the same account's earlier bulk one and every account stays in FIFO order.
+class WeightedLaneQueue {
+    private static final Transaction.Priority[] PRIORITIES = Transaction.Priority.values();
+    private final List<ArrayDeque<Transaction>> lanes;
+    // Lane and number of queued transactions of every account that has any
+    private final Map<String, AccountLane> accountLanes = new HashMap<>();
+    private final int[] weights;
+    private final int[] laneCapacities;
+    // Smooth weighted round robin state, per lane
+    private final int[] credits;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // Written under the lock, read without it for admission checks
+    private volatile int count;
+
+    WeightedLaneQueue(int capacity, int[] weights, int[] laneCapacities) {
+        int laneCount = Transaction.Priority.values().length;
+        this.capacity = capacity;
+        this.lanes = new ArrayList<>(laneCount);
+        this.weights = new int[laneCount];
+        this.laneCapacities = new int[laneCount];
+        this.credits = new int[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(new ArrayDeque<>());
+            this.weights[i] = Math.max(1, weights[i]);
+            this.laneCapacities[i] = Math.max(1, Math.min(capacity, laneCapacities[i]));
+        }
+    }
+
+    // Transactions without a priority go to the NORMAL lane
+    static int laneOf(Transaction transaction) {
+        Transaction.Priority priority = transaction.getPriority();
+        return (priority == null ? Transaction.Priority.NORMAL : priority).ordinal();
+    }
+
+    // The lane holding the account's queued transactions, or the transaction's own when there are none
+    private int laneFor(Transaction transaction) {
+        AccountLane queued = transaction.getAccountId() != null ? accountLanes.get(transaction.getAccountId()) : null;
+        return queued != null ? queued.lane : laneOf(transaction);
+    }
+
+    // False when either the queue or the lane the transaction would join is full
+    boolean hasRoomFor(Transaction transaction) {
+        lock.lock();
+        try {
+            int lane = laneFor(transaction);
+            return count < capacity && lanes.get(lane).size() < laneCapacities[lane];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // False when any lane, or the queue as a whole, has no room for its share of transactions
+    boolean hasRoomFor(List<Transaction> transactions) {
+        lock.lock();
+        try {
+            if (capacity - count < transactions.size()) {
+                return false;
+            }
+            int[] needed = new int[lanes.size()];
+            // Accounts first seen in this list follow their first transaction's lane
+            Map<String, Integer> joined = new HashMap<>();
+            for (Transaction transaction : transactions) {
+                int lane = laneFor(transaction);
+                if (transaction.getAccountId() != null && !accountLanes.containsKey(transaction.getAccountId())) {
+                    lane = joined.computeIfAbsent(transaction.getAccountId(), id -> laneOf(transaction));
+                }
+                if (lanes.get(lane).size() + ++needed[lane] > laneCapacities[lane]) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean offer(Transaction transaction) {
+        lock.lock();
+        try {
+            if (!hasRoomFor(transaction)) {
+                return false;
+            }
+            add(transaction);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // All or nothing
+    boolean offerAll(List<Transaction> transactions) {
+        lock.lock();
+        try {
+            if (!hasRoomFor(transactions)) {
+                return false;
+            }
+            for (Transaction transaction : transactions) {
+                add(transaction);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for room in the lane the transaction would join
+    void put(Transaction transaction) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                // Recomputed after every wait, since the account's queued transactions may be gone
+                int lane = laneFor(transaction);
+                if (count < capacity && lanes.get(lane).size() < laneCapacities[lane]) {
+                    break;
+                }
+                notFull.await();
+            }
+            add(transaction);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Transaction take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Same lane order as take(), without waiting
+    int drainTo(List<Transaction> batch, int maxTransactions) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxTransactions && count > 0) {
+                batch.add(remove());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(Transaction transaction) {
+        int lane = laneFor(transaction);
+        if (transaction.getAccountId() != null) {
+            accountLanes.computeIfAbsent(transaction.getAccountId(), id -> new AccountLane(lane)).queued++;
+        }
+        transaction.setQueuedLane(PRIORITIES[lane]);
+        lanes.get(lane).addLast(transaction);
+        count++;
+        notEmpty.signal();
+    }
+
+    // Every non-empty lane earns its weight, the richest is served and pays back what was earned
+    // in total. Over a full round each lane is served weight times, spread out evenly.
+    private Transaction remove() {
+        int chosen = -1;
+        int earned = 0;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (lanes.get(i).isEmpty()) {
+                continue;
+            }
+            credits[i] += weights[i];
+            earned += weights[i];
+            if (chosen < 0 || credits[i] > credits[chosen]) {
+                chosen = i;
+            }
+        }
+        credits[chosen] -= earned;
+        Transaction transaction = lanes.get(chosen).pollFirst();
+        if (transaction.getAccountId() != null) {
+            AccountLane queued = accountLanes.get(transaction.getAccountId());
+            if (--queued.queued == 0) {
+                accountLanes.remove(transaction.getAccountId());
+            }
+        }
+        if (lanes.get(chosen).isEmpty()) {
+            // An idle lane must not bank credit for when it comes back
+            credits[chosen] = 0;
+        }
+        count--;
+        // Only replay waits for room
+        if (lock.hasWaiters(notFull)) {
+            notFull.signalAll();
+        }
+        return transaction;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int laneSize(Transaction.Priority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int laneCapacity(Transaction.Priority priority) {
+        return laneCapacities[priority.ordinal()];
+    }
+
+    int weight(Transaction.Priority priority) {
+        return weights[priority.ordinal()];
+    }
+
+    private static final class AccountLane {
+        private final int lane;
+        private int queued;
+
+        private AccountLane(int lane) {
+            this.lane = lane;
+        }
+    }
+}